@@ -0,0 +1,56 @@
+package org.paylogic.jenkins.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.backends.MercurialBackend;
+import org.paylogic.jenkins.advancedscm.backends.helpers.JsonStreamReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of 'hg branches -Tjson' output as done by MercurialBackend.getBranches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HgBranchesParseBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int branches;
+
+    private String output;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < branches; i++) {
+            builder.append(i == 0 ? "\n" : ",\n");
+            builder.append(String.format(
+                    " {\n  \"active\": true,\n  \"branch\": \"r%04d\",\n  \"closed\": false,\n"
+                    + "  \"current\": false,\n  \"node\": \"%040x\",\n  \"rev\": %d\n }",
+                    i, 0xabcdef000L + i, 100000 + i));
+        }
+        output = builder.append("\n]\n").toString();
+    }
+
+    @Benchmark
+    public List<Branch> parseBranches() throws IOException {
+        return MercurialBackend.parseBranches(new JsonStreamReader(new StringReader(output)));
+    }
+}
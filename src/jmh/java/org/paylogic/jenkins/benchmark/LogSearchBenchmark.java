@@ -0,0 +1,104 @@
+package org.paylogic.jenkins.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.paylogic.jenkins.LogMessageSearcher;
+import org.paylogic.jenkins.LogScanner;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searching report messages in synthetic build logs, as LogMessageSearcher.searchForMessages does
+ * for builds without stored messages. The line iterator is the search as it was before LogScanner.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogSearchBenchmark {
+
+    @Param({"1", "100", "500"})
+    public int megabytes;
+
+    private File log;
+
+    @Setup
+    public void setUp() throws IOException {
+        log = File.createTempFile("gatekeeper-benchmark", ".log");
+        Random random = new Random(42);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(log), "UTF-8"));
+        try {
+            long size = 0;
+            int line = 0;
+            while (size < megabytes * 1024L * 1024L) {
+                String text;
+                if (line % 5000 == 0) {
+                    text = LogMessageSearcher.getMessagePrefix() + "Gatekeeper merge merged c" + line + " to r1336.";
+                } else {
+                    StringBuilder builder = new StringBuilder("adding file changes ");
+                    int length = random.nextInt(100);
+                    for (int i = 0; i < length; i++) {
+                        builder.append((char) ('a' + random.nextInt(26)));
+                    }
+                    text = builder.toString();
+                }
+                writer.write(text);
+                writer.write('\n');
+                size += text.length() + 1;
+                line++;
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.delete();
+    }
+
+    @Benchmark
+    public List<String> logScanner() throws IOException {
+        return new LogScanner(LogMessageSearcher.DEFAULT_MESSAGE_KEYWORD).scan(log);
+    }
+
+    @Benchmark
+    public List<String> lineIterator() throws IOException {
+        List<String> result = new ArrayList<String>();
+        LineIterator it = FileUtils.lineIterator(log, "UTF-8");
+        try {
+            while (it.hasNext()) {
+                String line = it.nextLine();
+                if (line.contains(LogMessageSearcher.DEFAULT_MESSAGE_KEYWORD)) {
+                    result.add(line);
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return result;
+    }
+}
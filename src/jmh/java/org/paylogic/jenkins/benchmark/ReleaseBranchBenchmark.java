@@ -0,0 +1,79 @@
+package org.paylogic.jenkins.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReleaseBranchImpl.next over growing branch lists, every other week has a release branch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReleaseBranchBenchmark {
+
+    @Param({"100", "1000", "2500"})
+    public int releases;
+
+    private List<String> branches;
+    private String start;
+
+    @Setup
+    public void setUp() {
+        branches = new ArrayList<String>();
+        branches.add("default");
+        for (int i = 0; i < releases; i++) {
+            int week = i * 2 % 52 + 1;
+            int year = i * 2 / 52;
+            branches.add(String.format("r%02d%02d", year, week));
+            branches.add("c" + i);
+        }
+        // Ten upmerges to the default branch, the usual length of a chain.
+        start = branches.get(branches.size() - 2 * Math.min(10, releases));
+        Collections.shuffle(branches);
+    }
+
+    @Benchmark
+    public String nextWithList() throws Exception {
+        ReleaseBranch releaseBranch = new ReleaseBranchImpl(start, "default");
+        releaseBranch.next(branches);
+        return releaseBranch.getName();
+    }
+
+    /**
+     * The upmerge chain as UpmergeBuilder walks it, including building the index.
+     */
+    @Benchmark
+    public int upmergeChain() throws Exception {
+        ReleaseBranch releaseBranch = new ReleaseBranchImpl(start, "default");
+        ReleaseBranchIndex index = releaseBranch.index(branches);
+        ReleaseBranch nextBranch = releaseBranch.copy();
+        nextBranch.next(index);
+        int steps = 0;
+        while (!nextBranch.getName().equals(releaseBranch.getName())) {
+            releaseBranch.next(index);
+            nextBranch.next(index);
+            steps++;
+        }
+        return steps;
+    }
+}
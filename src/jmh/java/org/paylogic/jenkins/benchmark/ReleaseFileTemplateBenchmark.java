@@ -0,0 +1,34 @@
+package org.paylogic.jenkins.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.paylogic.jenkins.gatekeeper.GatekeeperMerge;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Release file template rendering of GatekeeperMerge.ensureReleaseBranch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReleaseFileTemplateBenchmark {
+
+    public String template = "[release]\nname = {{release}}\nbranch = r{{release}}\n";
+
+    @Benchmark
+    public String render() throws IOException {
+        return GatekeeperMerge.renderReleaseFileContent(template, "1336");
+    }
+}
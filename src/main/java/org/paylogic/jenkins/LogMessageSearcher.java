@@ -2,12 +2,9 @@ package org.paylogic.jenkins;
 
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -24,9 +21,25 @@ public class LogMessageSearcher {
 
     /**
      * Logs a message that is later findable by the searcher part of this class.
+     * The message is also stored on the build, so it can be found without scanning the log.
+     * @param build
      * @param listener
      * @param message
      */
+    public static void logMessage(AbstractBuild build, BuildListener listener, String message) {
+        String line = getMessagePrefix() + message;
+        listener.getLogger().append(line + "\n");
+        ReportMessagesAction.forBuild(build).addMessage(line);
+    }
+
+    /**
+     * Logs a message that is later findable by the searcher part of this class.
+     * The message is only written to the log, so it is not found in builds which have stored messages.
+     * @param listener
+     * @param message
+     * @deprecated use {@link #logMessage(AbstractBuild, BuildListener, String)}
+     */
+    @Deprecated
     public static void logMessage(BuildListener listener, String message) {
         listener.getLogger().append(getMessagePrefix() + message + "\n");
     }
@@ -35,7 +48,16 @@ public class LogMessageSearcher {
         return DEFAULT_MESSAGE_KEYWORD + " ";
     }
 
+    /**
+     * Get the report messages of the build.
+     * Uses the messages stored on the build, only builds from before they were stored have their log scanned.
+     * @return List of messages found.
+     */
     public List<String> searchForMessages() throws IOException {
+        ReportMessagesAction action = build.getAction(ReportMessagesAction.class);
+        if (action != null) {
+            return action.getMessages();
+        }
         // Search with default keyword to look for.
         return this.searchForMessages(DEFAULT_MESSAGE_KEYWORD);
     }
@@ -46,23 +68,16 @@ public class LogMessageSearcher {
      * @return List of messages found.
      */
     public List<String> searchForMessages(String keyword) throws IOException {
-        final File logFile = build.getLogFile();
-        LineIterator it = FileUtils.lineIterator(logFile, "UTF-8");
-
-        List<String> resultList = new ArrayList<String>();
-
-        try {
-            while (it.hasNext()) {
-                String line = it.nextLine();
-                if (line.contains(keyword)) {
-                    resultList.add(line);
-                }
-            }
-        } finally {
-            it.close();
-        }
+        return this.searchForMessages(Arrays.asList(keyword));
+    }
 
-        return resultList;
+    /**
+     * Searches build log for lines with any of the given keywords, in one pass over the log.
+     * @param keywords Keywords to look for in log.
+     * @return List of messages found.
+     */
+    public List<String> searchForMessages(List<String> keywords) throws IOException {
+        return new LogScanner(keywords).scan(build.getLogFile());
     }
 
 }
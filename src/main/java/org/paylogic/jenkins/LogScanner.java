@@ -0,0 +1,309 @@
+package org.paylogic.jenkins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Finds the lines of a log which contain any of a set of keywords, in one pass over the raw bytes.
+ * Keywords are matched with an Aho-Corasick automaton on their UTF-8 bytes, so only matching lines are decoded.
+ * Large logs are split in chunks which are scanned in parallel, gzip compressed logs are streamed.
+ */
+public class LogScanner {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Logs of at least this size are scanned in parallel chunks.
+     */
+    public static final long CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Automaton transitions, indexed by state * 256 + byte.
+     */
+    private final int[] transitions;
+
+    /**
+     * Whether reaching a state means that a keyword was found.
+     */
+    private final boolean[] accepting;
+
+    public LogScanner(String... keywords) {
+        this(Arrays.asList(keywords));
+    }
+
+    public LogScanner(List<String> keywords) {
+        // Build the keyword trie, -1 is no transition yet.
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Boolean> accepts = new ArrayList<Boolean>();
+        trie.add(newState());
+        accepts.add(false);
+        for (String keyword: keywords) {
+            int state = 0;
+            for (byte b: keyword.getBytes(UTF8)) {
+                int c = b & 0xFF;
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newState());
+                    accepts.add(false);
+                }
+                state = trie.get(state)[c];
+            }
+            accepts.set(state, true);
+        }
+
+        // Turn the trie into a complete automaton, breadth first, using the failure links.
+        int states = trie.size();
+        transitions = new int[states * 256];
+        accepting = new boolean[states];
+        int[] failure = new int[states];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int c = 0; c < 256; c++) {
+            int next = trie.get(0)[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        accepting[0] = accepts.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            accepting[state] = accepts.get(state) || accepting[failure[state]];
+            for (int c = 0; c < 256; c++) {
+                int next = trie.get(state)[c];
+                if (next < 0) {
+                    transitions[state * 256 + c] = transitions[failure[state] * 256 + c];
+                } else {
+                    transitions[state * 256 + c] = next;
+                    failure[next] = transitions[failure[state] * 256 + c];
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    /**
+     * Scan given log file, files ending with .gz are decompressed while scanning.
+     * @return List of the matching lines, without line terminators, in file order.
+     */
+    public List<String> scan(File file) throws IOException {
+        if (file.getName().endsWith(".gz")) {
+            InputStream in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+            try {
+                return scan(in);
+            } finally {
+                in.close();
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            int chunks = (int) Math.min(Runtime.getRuntime().availableProcessors(), size / CHUNK_SIZE);
+            if (chunks <= 1) {
+                return scan(channel, 0, size);
+            }
+            return scanParallel(channel, size, chunks);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Scan given stream until its end.
+     * @return List of the matching lines, without line terminators.
+     */
+    public List<String> scan(InputStream in) throws IOException {
+        Matcher matcher = new Matcher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            matcher.feed(buffer, 0, read, Integer.MAX_VALUE);
+        }
+        matcher.finish();
+        return matcher.lines;
+    }
+
+    private List<String> scanParallel(final FileChannel channel, long size, int chunks) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            long chunkSize = size / chunks;
+            for (int i = 0; i < chunks; i++) {
+                final long start = i * chunkSize;
+                final long end = i == chunks - 1 ? size : start + chunkSize;
+                results.add(executor.submit(new Callable<List<String>>() {
+                    public List<String> call() throws IOException {
+                        return scan(channel, start, end);
+                    }
+                }));
+            }
+            List<String> lines = new ArrayList<String>();
+            for (Future<List<String>> result: results) {
+                lines.addAll(result.get());
+            }
+            return lines;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while scanning log", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to scan log", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan the lines which start in the range [start, end) of the channel.
+     * The last line is followed past the end of the range, the partial line at the start belongs to the chunk before.
+     */
+    private List<String> scan(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = start;
+        if (start > 0) {
+            // Skip up to and including the first line end at or after start - 1.
+            position = start - 1;
+            boolean found = false;
+            while (!found) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return new ArrayList<String>();
+                }
+                byte[] bytes = buffer.array();
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] == '\n') {
+                        position += i + 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    position += read;
+                }
+            }
+        }
+
+        Matcher matcher = new Matcher();
+        while (position < end || matcher.inLine()) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            // Lines which start at or after the end of the range belong to the next chunk.
+            long linesBefore = end - position;
+            int stopAt = linesBefore > read ? Integer.MAX_VALUE : (int) Math.max(linesBefore, 0);
+            int used = matcher.feed(buffer.array(), 0, read, stopAt);
+            if (used < read) {
+                return matcher.lines;
+            }
+            position += read;
+        }
+        matcher.finish();
+        return matcher.lines;
+    }
+
+    /**
+     * Runs the automaton over consecutive buffers, keeping the bytes of the current line.
+     */
+    private final class Matcher {
+        final List<String> lines = new ArrayList<String>();
+        private int state;
+        private boolean matched;
+        private byte[] carry = new byte[256];
+        private int carryLength;
+        private boolean inLine;
+
+        boolean inLine() {
+            return inLine;
+        }
+
+        /**
+         * Feed bytes, stopping before the first line which starts at or after offset stopAt.
+         * @return number of bytes used.
+         */
+        int feed(byte[] bytes, int offset, int length, int stopAt) {
+            int lineStart = offset;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                if (!inLine && i >= stopAt) {
+                    return i - offset;
+                }
+                inLine = true;
+                int c = bytes[i] & 0xFF;
+                if (c == '\n') {
+                    if (matched) {
+                        addLine(bytes, lineStart, i);
+                    }
+                    carryLength = 0;
+                    state = 0;
+                    matched = false;
+                    inLine = false;
+                    lineStart = i + 1;
+                } else if (!matched) {
+                    state = transitions[state * 256 + c];
+                    matched = accepting[state];
+                }
+            }
+            if (inLine) {
+                // The line continues in the next buffer.
+                keep(bytes, lineStart, end);
+            }
+            return length;
+        }
+
+        void finish() {
+            if (inLine && matched) {
+                addLine(new byte[0], 0, 0);
+            }
+        }
+
+        private void keep(byte[] bytes, int from, int to) {
+            int length = to - from;
+            if (carryLength + length > carry.length) {
+                carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+            }
+            System.arraycopy(bytes, from, carry, carryLength, length);
+            carryLength += length;
+        }
+
+        private void addLine(byte[] bytes, int from, int to) {
+            keep(bytes, from, to);
+            int length = carryLength;
+            if (length > 0 && carry[length - 1] == '\r') {
+                length--;
+            }
+            lines.add(new String(carry, 0, length, UTF8));
+            carryLength = 0;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.paylogic.jenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the report messages of a build, so they can be found without scanning the build log.
+ * Saved together with the build.
+ */
+public class ReportMessagesAction extends InvisibleAction {
+
+    private final List<String> messages = new ArrayList<String>();
+
+    /**
+     * Get the action of given build, it is added when the build has none yet.
+     */
+    public static ReportMessagesAction forBuild(AbstractBuild build) {
+        synchronized (build) {
+            ReportMessagesAction action = build.getAction(ReportMessagesAction.class);
+            if (action == null) {
+                action = new ReportMessagesAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    public synchronized void addMessage(String line) {
+        messages.add(line);
+    }
+
+    /**
+     * @return List of the logged lines with report messages, in logged order.
+     */
+    public synchronized List<String> getMessages() {
+        return new ArrayList<String>(messages);
+    }
+}
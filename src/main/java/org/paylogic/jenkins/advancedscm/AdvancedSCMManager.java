@@ -59,6 +59,25 @@ public interface AdvancedSCMManager {
      */
     public void mergeWorkspaceWith(String revision, String updateTo) throws AdvancedSCMException;
 
+    /**
+     * Test-merge given revision into target without touching the working copy.
+     * Backends which can not merge without a working copy return false, the actual merge will find the conflict.
+     * Must be safe to call from several threads at once.
+     * @param revision : String with revision, hash or branchname to merge.
+     * @param target : String with revision, hash or branchname to merge into.
+     * @return true if the merge would have conflicts.
+     */
+    public boolean hasMergeConflicts(String revision, String target) throws AdvancedSCMException;
+
+    /**
+     * Get an identifier of the content of given revision.
+     * Revisions with different content never have the same identifier. Backends may give revisions
+     * with the same content but a different history different identifiers.
+     * @param revision : String with revision, hash or branchname.
+     * @return String identifying the content.
+     */
+    public String getContentId(String revision) throws AdvancedSCMException;
+
     /**
      * Commit current workspace.
     * @param message : String commit message
@@ -66,6 +85,17 @@ public interface AdvancedSCMManager {
     */
     public void commit(String message, String username) throws AdvancedSCMException;
 
+    /**
+     * Merge the commits the remote got since it diverged from given local branch into that branch and commit,
+     * when both sides changed different files, so the merge can not change how the local changes behave
+     * file by file. The remote has to be pulled first.
+     * @param branch : String with the local branch name.
+     * @param message : String commit message
+     * @param username : String commit user name (with email)
+     * @return false when both sides changed the same files, nothing is merged then.
+     */
+    public boolean mergeRemoteChanges(String branch, String message, String username) throws AdvancedSCMException;
+
     /**
      * Merge possible current branch's heads.
      * @param message : String commit message
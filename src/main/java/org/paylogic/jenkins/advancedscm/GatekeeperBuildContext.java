@@ -0,0 +1,102 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.InvisibleAction;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import org.jenkinsci.plugins.envinject.EnvInjectBuilderContributionAction;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * State shared by the gatekeeper build steps of one build: the resolved AdvancedSCMManager,
+ * with its branch snapshots, and the build environment.
+ * So only the first step resolves the SCM and workspace, and computes the environment.
+ * Nothing of it is saved with the build.
+ */
+public class GatekeeperBuildContext extends InvisibleAction {
+
+    private transient AdvancedSCMManager manager;
+    private transient EnvVars environment;
+
+    /**
+     * Number of environment contributing actions of the build when the environment was computed.
+     */
+    private transient int environmentActions;
+
+    /**
+     * Get the context of given build, it is added when the build has none yet.
+     */
+    public static GatekeeperBuildContext forBuild(AbstractBuild build) {
+        synchronized (build) {
+            GatekeeperBuildContext context = build.getAction(GatekeeperBuildContext.class);
+            if (context == null) {
+                context = new GatekeeperBuildContext();
+                build.addAction(context);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Get the manager of the repository of the build, it is created by the first step that asks for it.
+     */
+    public synchronized AdvancedSCMManager getManager(AbstractBuild build, Launcher launcher, BuildListener listener)
+            throws Exception {
+        if (manager == null) {
+            manager = SCMManagerFactory.getManager(build, launcher, listener);
+        }
+        return manager;
+    }
+
+    /**
+     * Get the environment of the build.
+     * It is computed again when actions were added that contribute to it, like other build steps injecting variables.
+     * @return copy of the environment, so callers can not change the cached one.
+     */
+    public synchronized EnvVars getEnvironment(AbstractBuild build, TaskListener listener)
+            throws IOException, InterruptedException {
+        int actions = build.getActions(EnvironmentContributingAction.class).size();
+        if (environment == null || actions != environmentActions) {
+            environment = build.getEnvironment(listener);
+            environmentActions = actions;
+        }
+        return new EnvVars(environment);
+    }
+
+    /**
+     * Pass variables to later build steps, and to the cached environment.
+     */
+    public synchronized void contribute(AbstractBuild build, Map<String, String> vars) {
+        build.addAction(new EnvInjectBuilderContributionAction(vars));
+        if (environment != null) {
+            environment.putAll(vars);
+            environmentActions = build.getActions(EnvironmentContributingAction.class).size();
+        }
+    }
+
+    private synchronized void release() {
+        manager = null;
+        environment = null;
+    }
+
+    /**
+     * Releases the manager of a build when it completes.
+     */
+    @Extension
+    public static class BuildCleanup extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            GatekeeperBuildContext context = build.getAction(GatekeeperBuildContext.class);
+            if (context != null) {
+                context.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.paylogic.jenkins.advancedscm;
+
+import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * AdvancedSCMManager which passes every call on to a backend, and reports each call with its duration to observers.
+ * SCMManagerFactory wraps every backend in one.
+ */
+@Log
+public class InstrumentedSCMManager implements AdvancedSCMManager {
+
+    /**
+     * Receives the calls made to the manager. Called on the thread which makes the call.
+     */
+    public interface Observer {
+        /**
+         * @param operation : String name of the AdvancedSCMManager method
+         * @param detail : String with the arguments of the call
+         */
+        void started(String operation, String detail);
+
+        /**
+         * @param nanos : duration of the call in nanoseconds
+         * @param failure : exception thrown by the call, or null
+         */
+        void finished(String operation, String detail, long nanos, Throwable failure);
+    }
+
+    private final AdvancedSCMManager backend;
+    private final List<Observer> observers;
+
+    public InstrumentedSCMManager(AdvancedSCMManager backend, List<Observer> observers) {
+        this.backend = backend;
+        this.observers = observers;
+    }
+
+    public AdvancedSCMManager getBackend() {
+        return backend;
+    }
+
+    private static abstract class Call<T> {
+        abstract T run() throws AdvancedSCMException, ReleaseBranchInvalidException;
+    }
+
+    private <T> T invoke(String operation, String detail, Call<T> call)
+            throws AdvancedSCMException, ReleaseBranchInvalidException {
+        for (Observer observer: observers) {
+            try {
+                observer.started(operation, detail);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Observer failed", e);
+            }
+        }
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return call.run();
+        } catch (AdvancedSCMException e) {
+            failure = e;
+            throw e;
+        } catch (ReleaseBranchInvalidException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            for (Observer observer: observers) {
+                try {
+                    observer.finished(operation, detail, nanos, failure);
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Observer failed", e);
+                }
+            }
+        }
+    }
+
+    private <T> T call(String operation, String detail, Call<T> call) throws AdvancedSCMException {
+        try {
+            return invoke(operation, detail, call);
+        } catch (ReleaseBranchInvalidException e) {
+            // Only thrown by calls which declare it, those use invoke.
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
+
+    public List<Branch> getBranches(final boolean all) throws AdvancedSCMException {
+        return call("getBranches", String.valueOf(all), new Call<List<Branch>>() {
+            List<Branch> run() throws AdvancedSCMException {
+                return backend.getBranches(all);
+            }
+        });
+    }
+
+    public List<String> getBranchNames(final boolean all) throws AdvancedSCMException {
+        return call("getBranchNames", String.valueOf(all), new Call<List<String>>() {
+            List<String> run() throws AdvancedSCMException {
+                return backend.getBranchNames(all);
+            }
+        });
+    }
+
+    public String getBranch() throws AdvancedSCMException {
+        return call("getBranch", "", new Call<String>() {
+            String run() throws AdvancedSCMException {
+                return backend.getBranch();
+            }
+        });
+    }
+
+    public void update(final String revision) throws AdvancedSCMException {
+        call("update", revision, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.update(revision);
+                return null;
+            }
+        });
+    }
+
+    public void updateClean(final String revision) throws AdvancedSCMException {
+        call("updateClean", revision, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.updateClean(revision);
+                return null;
+            }
+        });
+    }
+
+    public void stripLocal() throws AdvancedSCMException {
+        call("stripLocal", "", new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.stripLocal();
+                return null;
+            }
+        });
+    }
+
+    public void clean() throws AdvancedSCMException {
+        call("clean", "", new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.clean();
+                return null;
+            }
+        });
+    }
+
+    public void mergeWorkspaceWith(final String revision, final String updateTo) throws AdvancedSCMException {
+        call("mergeWorkspaceWith", revision + " " + updateTo, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.mergeWorkspaceWith(revision, updateTo);
+                return null;
+            }
+        });
+    }
+
+    public boolean hasMergeConflicts(final String revision, final String target) throws AdvancedSCMException {
+        return call("hasMergeConflicts", revision + " " + target, new Call<Boolean>() {
+            Boolean run() throws AdvancedSCMException {
+                return backend.hasMergeConflicts(revision, target);
+            }
+        });
+    }
+
+    public String getContentId(final String revision) throws AdvancedSCMException {
+        return call("getContentId", revision, new Call<String>() {
+            String run() throws AdvancedSCMException {
+                return backend.getContentId(revision);
+            }
+        });
+    }
+
+    public void commit(final String message, final String username) throws AdvancedSCMException {
+        call("commit", message, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.commit(message, username);
+                return null;
+            }
+        });
+    }
+
+    public boolean mergeRemoteChanges(final String branch, final String message, final String username)
+            throws AdvancedSCMException {
+        return call("mergeRemoteChanges", branch, new Call<Boolean>() {
+            Boolean run() throws AdvancedSCMException {
+                return backend.mergeRemoteChanges(branch, message, username);
+            }
+        });
+    }
+
+    public void mergeHeads(final String message, final String username) throws AdvancedSCMException {
+        call("mergeHeads", message, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.mergeHeads(message, username);
+                return null;
+            }
+        });
+    }
+
+    public void closeBranch(final String branch, final String message, final String username)
+            throws AdvancedSCMException {
+        call("closeBranch", branch, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.closeBranch(branch, message, username);
+                return null;
+            }
+        });
+    }
+
+    public void push(final String... branchNames) throws AdvancedSCMException {
+        call("push", StringUtils.join(branchNames, ","), new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.push(branchNames);
+                return null;
+            }
+        });
+    }
+
+    public void pull() throws AdvancedSCMException {
+        call("pull", "", new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.pull();
+                return null;
+            }
+        });
+    }
+
+    public void pull(final String remote) throws AdvancedSCMException {
+        call("pull", remote, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.pull(remote);
+                return null;
+            }
+        });
+    }
+
+    public void pull(final String remote, final String branch) throws AdvancedSCMException {
+        call("pull", remote + " " + branch, new Call<Void>() {
+            Void run() throws AdvancedSCMException {
+                backend.pull(remote, branch);
+                return null;
+            }
+        });
+    }
+
+    public ReleaseBranch getReleaseBranch(String branch) throws ReleaseBranchInvalidException {
+        return backend.getReleaseBranch(branch);
+    }
+
+    public void ensureReleaseBranch(
+            final String branch, final String releaseFilePath, final String releaseFileContent,
+            final String message, final String username)
+            throws AdvancedSCMException, ReleaseBranchInvalidException {
+        invoke("ensureReleaseBranch", branch, new Call<Void>() {
+            Void run() throws AdvancedSCMException, ReleaseBranchInvalidException {
+                backend.ensureReleaseBranch(branch, releaseFilePath, releaseFileContent, message, username);
+                return null;
+            }
+        });
+    }
+
+    public ReleaseBranch createReleaseBranch(
+            final String branch, final String releaseFilePath, final String releaseFileContent,
+            final String message, final String username)
+            throws AdvancedSCMException, ReleaseBranchInvalidException {
+        return invoke("createReleaseBranch", branch, new Call<ReleaseBranch>() {
+            ReleaseBranch run() throws AdvancedSCMException, ReleaseBranchInvalidException {
+                return backend.createReleaseBranch(branch, releaseFilePath, releaseFileContent, message, username);
+            }
+        });
+    }
+}
@@ -1,5 +1,6 @@
 package org.paylogic.jenkins.advancedscm;
 
+import hudson.EnvVars;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
@@ -11,9 +12,13 @@ import hudson.scm.SCM;
 import lombok.extern.java.Log;
 import org.jenkinsci.plugins.multiplescms.MultiSCM;
 import org.paylogic.jenkins.advancedscm.backends.GitBackend;
+import org.paylogic.jenkins.advancedscm.backends.JGitBackend;
 import org.paylogic.jenkins.advancedscm.backends.MercurialBackend;
+import org.paylogic.jenkins.metrics.MetricsObserver;
+import org.paylogic.jenkins.timeline.BuildTimeline;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -23,10 +28,29 @@ import java.util.List;
  */
 @Log
 public class SCMManagerFactory {
+
+    /**
+     * Build environment variable to choose the Git implementation, "cli" (default) or "jgit".
+     */
+    public static final String GIT_IMPLEMENTATION_VARIABLE = "GATEKEEPER_GIT_IMPL";
+
+    /**
+     * Get the manager of the repository of the build, instrumented to record its calls in the build timeline
+     * and in the controller-wide metrics.
+     */
     public static AdvancedSCMManager getManager(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        List<InstrumentedSCMManager.Observer> observers = new ArrayList<InstrumentedSCMManager.Observer>();
+        observers.add(BuildTimeline.forBuild(build));
+        observers.add(MetricsObserver.forBuild(build, listener));
+        return new InstrumentedSCMManager(createManager(build, launcher, listener), observers);
+    }
+
+    private static AdvancedSCMManager createManager(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
         String givenRepoSubdir = null;
         PrintStream l = listener.getLogger();
-        givenRepoSubdir = build.getEnvironment(listener).get("REPO_SUBDIR", "");
+        EnvVars environment = GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener);
+        givenRepoSubdir = environment.get("REPO_SUBDIR", "");
+        boolean useJGit = "jgit".equalsIgnoreCase(environment.get(GIT_IMPLEMENTATION_VARIABLE, "cli"));
         SCM scm = build.getProject().getScm();
 
         // Sort out multiscm scms.
@@ -52,7 +76,7 @@ public class SCMManagerFactory {
                                 String targetDir = ((RelativeTargetDirectory) extension).getRelativeTargetDir();
                                 if (targetDir  != null && !targetDir .isEmpty() && targetDir == givenRepoSubdir) {
                                     l.append("Chosen MultiSCM with Git Backend");
-                                    return new GitBackend(build, launcher, listener, (GitSCM) s);
+                                    return getGitManager(build, launcher, listener, (GitSCM) s, useJGit);
                                 }
                             }
                         }
@@ -69,10 +93,20 @@ public class SCMManagerFactory {
             return new MercurialBackend(build, launcher, listener, (MercurialSCM) scm);
         } else if (scm instanceof GitSCM) {
             l.append("Chosen Git backend, NO MultiSCM");
-            return new GitBackend(build, launcher, listener, (GitSCM) scm);
+            return getGitManager(build, launcher, listener, (GitSCM) scm, useJGit);
         }
 
         // If we come here, no viable SCM was found, so we quit.
         throw new Exception("There is no implementation available for the chosen SCM. Sorry about that.");
     }
+
+    private static AdvancedSCMManager getGitManager(
+            AbstractBuild build, Launcher launcher, BuildListener listener, GitSCM scm, boolean useJGit)
+            throws Exception {
+        if (useJGit) {
+            listener.getLogger().append(" (JGit implementation)");
+            return new JGitBackend(build, launcher, listener, scm);
+        }
+        return new GitBackend(build, launcher, listener, scm);
+    }
 }
@@ -10,7 +10,12 @@ import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Base for implementations of AdvancedSCMManager
@@ -22,15 +27,92 @@ abstract class BaseBackend  implements AdvancedSCMManager {
      */
     protected FilePath repoPath;
 
+    /**
+     * Snapshot of the branches with their heads, by value of the 'all' flag.
+     * Cleared by operations which move heads.
+     */
+    private final Map<Boolean, List<Branch>> branchSnapshot = new HashMap<Boolean, List<Branch>>();
+
+    /**
+     * Snapshot of the branch names, by value of the 'all' flag.
+     * Patched or cleared by operations which create, close or fetch branches.
+     */
+    private final Map<Boolean, Set<String>> branchNameSnapshot = new HashMap<Boolean, Set<String>>();
+
+    public List<Branch> getBranches(boolean all) throws AdvancedSCMException {
+        List<Branch> branches = branchSnapshot.get(all);
+        if (branches == null) {
+            branches = Collections.unmodifiableList(listBranches(all));
+            branchSnapshot.put(all, branches);
+        }
+        return branches;
+    }
+
     public List<String> getBranchNames(boolean all) throws AdvancedSCMException {
-        List<String> list = new ArrayList<String>();
-        for (Branch branch: this.getBranches(all)) {
-            list.add(branch.getBranchName());
+        return new ArrayList<String>(getBranchNameSet(all));
+    }
+
+    /**
+     * Get the branch names from the snapshot, only lists the branches when there is no snapshot yet.
+     * @param all : get all or only open branches
+     * @return Set of String
+     */
+    public Set<String> getBranchNameSet(boolean all) throws AdvancedSCMException {
+        Set<String> names = branchNameSnapshot.get(all);
+        if (names == null) {
+            names = new LinkedHashSet<String>();
+            for (Branch branch: this.getBranches(all)) {
+                names.add(branch.getBranchName());
+            }
+            branchNameSnapshot.put(all, names);
         }
-        return list;
+        return Collections.unmodifiableSet(names);
     }
 
-    abstract public List<Branch> getBranches(boolean all) throws AdvancedSCMException;
+    /**
+     * Get branches from the repository, without using the snapshot.
+     * @param all : get all or only open branches
+     * @return List of Branches
+     */
+    abstract protected List<Branch> listBranches(boolean all) throws AdvancedSCMException;
+
+    /**
+     * Forget the snapshot, after an operation which may have changed any branch.
+     */
+    protected void invalidateBranches() {
+        branchSnapshot.clear();
+        branchNameSnapshot.clear();
+    }
+
+    /**
+     * Forget the heads of the branches, after an operation which only moved heads.
+     */
+    protected void invalidateBranchHeads() {
+        branchSnapshot.clear();
+    }
+
+    /**
+     * Add a newly created branch to the snapshot.
+     * @param branch : String branch name
+     */
+    protected void addBranchToSnapshot(String branch) {
+        branchSnapshot.clear();
+        for (Set<String> names: branchNameSnapshot.values()) {
+            names.add(branch);
+        }
+    }
+
+    /**
+     * Remove a closed branch from the snapshot of open branches.
+     * @param branch : String branch name
+     */
+    protected void removeClosedBranchFromSnapshot(String branch) {
+        branchSnapshot.clear();
+        Set<String> openNames = branchNameSnapshot.get(false);
+        if (openNames != null) {
+            openNames.remove(branch);
+        }
+    }
 
     abstract public ReleaseBranch createReleaseBranch(
             String branch, String releaseFilePath, String releaseFileContent, String message, String username)
@@ -39,8 +121,7 @@ abstract class BaseBackend  implements AdvancedSCMManager {
     public void ensureReleaseBranch(
             String branch, String releaseFilePath, String releaseFileContent, String message, String username)
             throws AdvancedSCMException, ReleaseBranchInvalidException {
-        List<String> branchNames = getBranchNames(false);
-        if (!branchNames.contains(branch)) {
+        if (!getBranchNameSet(false).contains(branch)) {
             createReleaseBranch(branch, releaseFilePath, releaseFileContent, message, username);
         }
     }
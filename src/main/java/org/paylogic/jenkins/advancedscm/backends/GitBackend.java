@@ -6,25 +6,35 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.extensions.GitSCMExtension;
 import lombok.extern.java.Log;
 import org.apache.tools.ant.taskdefs.email.EmailAddress;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.transport.URIish;
 import org.jenkinsci.plugins.gitclient.GitClient;
 import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
 import org.paylogic.jenkins.advancedscm.backends.helpers.AdvancedCliGit;
+import org.paylogic.jenkins.advancedscm.backends.helpers.GitCatFile;
+import org.paylogic.jenkins.advancedscm.backends.helpers.MirrorCache;
+import org.paylogic.jenkins.advancedscm.backends.helpers.SharedObjectStore;
 import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.advancedscm.exceptions.PushCreatesNewRemoteHeadException;
+import org.paylogic.jenkins.advancedscm.exceptions.UnknownRevisionException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
 
 import java.io.File;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Mercurial Implementation of AdvancedSCMManager
@@ -32,29 +42,102 @@ import java.util.List;
 @Log
 public class GitBackend extends BaseBackend {
 
+    /**
+     * Build environment variable to choose how stripLocal works, "checkout" to check out every local branch.
+     */
+    public static final String STRIP_MODE_VARIABLE = "GATEKEEPER_GIT_STRIP";
+
     private final AbstractBuild build;
     private final Launcher launcher;
     private final BuildListener listener;
     private final GitSCM scm;
     private final AdvancedCliGit git;
 
+    /**
+     * Snapshot of the local branch names, null until they are listed.
+     */
+    private Set<String> localBranchSnapshot;
+
+    /**
+     * Snapshot of all refs, object ids by full ref name, null until they are listed.
+     * Dropped after fetches, commits and other operations which move refs.
+     */
+    private Map<String, String> refSnapshot;
+
+    /**
+     * Prefixes to look up a ref name with, in the order of precedence of 'git rev-parse'.
+     */
+    private static final String[] REF_PREFIXES = {"refs/", "refs/tags/", "refs/heads/", "refs/remotes/"};
+
+    /**
+     * Errors of git clients and servers which do not support atomic pushes. A rejected atomic push reports
+     * "atomic push failed" instead, and must not be pushed again without --atomic.
+     */
+    private static final String[] ATOMIC_UNSUPPORTED = {
+            "does not support --atomic", "unknown option `atomic'"};
+
+    /**
+     * Whether stripLocal only rewrites refs, instead of checking out every branch.
+     */
+    private final boolean refOnlyStrip;
+
+    /**
+     * Mirror cache of the node, null when it is not enabled.
+     */
+    private final MirrorCache mirrorCache;
+
+    /**
+     * Whether the mirror cache is the shared object store of the workspace.
+     */
+    private final boolean sharedObjects;
+
+    /**
+     * Target branch of the build, the work tree is reset to it when HEAD is detached.
+     */
+    private final String targetBranch;
+
+    /**
+     * Whether git merge-tree turned out not to support --write-tree, set by the first test-merge.
+     */
+    private volatile boolean writeTreeUnsupported;
+
     public GitBackend(AbstractBuild build, Launcher launcher, BuildListener listener, GitSCM scm) throws Exception {
         this.build = build;
         this.launcher = launcher;
         this.listener = listener;
         this.scm = scm;
+        EnvVars environment = GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener);
+        FilePath path = getWorkingDirectory(build, listener, scm, environment);
+        this.git = new AdvancedCliGit(
+                scm, launcher, build.getBuiltOn(), new File(path.absolutize().getRemote()), listener,
+                environment);
+        this.git.setTimeline(BuildTimeline.forBuild(build));
+        if (GitCatFile.isEnabled(environment)) {
+            this.git.setCatFile(GitCatFile.forWorkTree(build, new File(path.absolutize().getRemote())));
+        }
+        this.refOnlyStrip = !"checkout".equals(environment.get(STRIP_MODE_VARIABLE, ""));
+        MirrorCache sharedStore = SharedObjectStore.forBuild(build, listener, environment);
+        this.sharedObjects = sharedStore != null;
+        this.mirrorCache = sharedObjects ? sharedStore : MirrorCache.forBuild(build, listener, environment);
+        this.targetBranch = environment.get("TARGET_BRANCH", "");
+        this.repoPath = git.getWorkTree();
+    }
+
+    /**
+     * Get the directory the git repository is checked out in, taking extensions like
+     * RelativeTargetDirectory into account.
+     */
+    public static FilePath getWorkingDirectory(AbstractBuild build, TaskListener listener, GitSCM scm,
+                                               EnvVars environment)
+            throws Exception {
         FilePath path = build.getWorkspace();
-        EnvVars environment = build.getEnvironment(listener);
         for (GitSCMExtension ext : scm.getExtensions()) {
             FilePath r = ext.getWorkingDirectory(scm, build.getParent(), path, environment, listener);
             if (r!=null) {
                 path = r;
             }
         }
-        this.git = new AdvancedCliGit(
-                scm, launcher, build.getBuiltOn(), new File(path.absolutize().getRemote()), listener,
-                build.getEnvironment(listener));
-        this.repoPath = git.getWorkTree();
+        return path;
     }
 
     /**
@@ -64,7 +147,7 @@ public class GitBackend extends BaseBackend {
      *
      * @return List of Branches
      */
-    public List<Branch> getBranches(boolean all) throws AdvancedSCMException {
+    protected List<Branch> listBranches(boolean all) throws AdvancedSCMException {
         List<Branch> result = new ArrayList<Branch>();
         try {
             for (hudson.plugins.git.Branch branch : git.getRemoteBranches()) {
@@ -103,16 +186,68 @@ public class GitBackend extends BaseBackend {
 
 
     /**
-     * Get branches from command line output,
-     * and put them in a List so it's nice to work with.
+     * Get local branch names from the snapshot, only lists them when there is no snapshot yet.
      * @return List of String
      */
-    public List<String> getLocalBranchNames() throws AdvancedSCMException {
-        List<String> list = new ArrayList<String>();
-        for (Branch branch: this.getLocalBranches()) {
-            list.add(branch.getBranchName());
+    public synchronized List<String> getLocalBranchNames() throws AdvancedSCMException {
+        if (localBranchSnapshot == null) {
+            localBranchSnapshot = new LinkedHashSet<String>();
+            for (Branch branch: this.getLocalBranches()) {
+                localBranchSnapshot.add(branch.getBranchName());
+            }
         }
-        return list;
+        return new ArrayList<String>(localBranchSnapshot);
+    }
+
+    private void addLocalBranchToSnapshot(String branch) {
+        if (localBranchSnapshot != null) {
+            localBranchSnapshot.add(branch);
+        }
+    }
+
+    /**
+     * Resolve a ref name or full hash with the ref snapshot, all refs are listed with one 'git for-each-ref'
+     * when there is no snapshot yet. Tags resolve to the commit they point to.
+     * @return ObjectId, null when the name is neither a ref nor a full hash.
+     */
+    private ObjectId resolveRef(String name) throws InterruptedException {
+        if (ObjectId.isId(name)) {
+            return ObjectId.fromString(name);
+        }
+        if (refSnapshot == null) {
+            Map<String, String> refs = new HashMap<String, String>();
+            String output = git.launchCommand(
+                    "for-each-ref", "--format=%(objectname) %(*objectname) %(refname)");
+            for (String line: output.split("\n")) {
+                String[] parts = line.trim().split(" ", 3);
+                if (parts.length == 3) {
+                    refs.put(parts[2], parts[1].isEmpty() ? parts[0] : parts[1]);
+                }
+            }
+            refSnapshot = refs;
+        }
+        for (String prefix: REF_PREFIXES) {
+            String id = refSnapshot.get(prefix + name);
+            if (id != null) {
+                return ObjectId.fromString(id);
+            }
+        }
+        String head = refSnapshot.get("refs/remotes/" + name + "/HEAD");
+        return head == null ? null : ObjectId.fromString(head);
+    }
+
+    /**
+     * Resolve a revision with the ref snapshot, and with 'git rev-parse' when it is not a ref.
+     */
+    private ObjectId resolve(String revision) throws InterruptedException {
+        ObjectId id = resolveRef(revision);
+        return id != null ? id : git.revParse(revision);
+    }
+
+    @Override
+    protected void invalidateBranches() {
+        super.invalidateBranches();
+        refSnapshot = null;
     }
 
 
@@ -143,10 +278,14 @@ public class GitBackend extends BaseBackend {
             catch (Exception exception) {
                 throw new AdvancedSCMException(exception.toString());
             }
+            refSnapshot = null;
+            addLocalBranchToSnapshot(revision);
         } else {
             try {
-                git.checkout().ref(revision).execute();
-            } catch (InterruptedException exception) {
+                // Not with the client, which forces the checkout. Uncommitted changes which would be overwritten
+                // fail it, like in JGitBackend.
+                git.launchCommand("checkout", revision);
+            } catch (Exception exception) {
                 throw new AdvancedSCMException(exception.toString());
             }
         }
@@ -157,7 +296,59 @@ public class GitBackend extends BaseBackend {
         clean();
     }
 
+    /**
+     * Strip out local commits which are not pushed yet.
+     * Rewrites only the local branches which diverged from origin, without checking them out,
+     * and resets the current branch. Set GATEKEEPER_GIT_STRIP=checkout to check out and reset every branch instead.
+     */
     public void stripLocal() throws AdvancedSCMException {
+        refSnapshot = null;
+        if (!refOnlyStrip) {
+            stripLocalWithCheckouts();
+            return;
+        }
+        try {
+            Map<String, String> refs = new HashMap<String, String>();
+            String output = git.launchCommand(
+                    "for-each-ref", "--format=%(objectname) %(refname)", "refs/heads", "refs/remotes/origin");
+            for (String line: output.split("\n")) {
+                String[] parts = line.trim().split(" ", 2);
+                if (parts.length == 2) {
+                    refs.put(parts[1], parts[0]);
+                }
+            }
+
+            String current = getBranch();
+            // The SCM checkout leaves HEAD detached, then no branch is checked out and all of them are rewritten.
+            boolean detached = "HEAD".equals(current);
+            localBranchSnapshot = new LinkedHashSet<String>();
+            for (Map.Entry<String, String> ref: refs.entrySet()) {
+                if (!ref.getKey().startsWith("refs/heads/")) {
+                    continue;
+                }
+                String branch = ref.getKey().substring("refs/heads/".length());
+                localBranchSnapshot.add(branch);
+                String remote = refs.get("refs/remotes/origin/" + branch);
+                if (remote != null && !remote.equals(ref.getValue()) && (detached || !branch.equals(current))) {
+                    git.launchCommand("update-ref", ref.getKey(), remote, ref.getValue());
+                }
+            }
+
+            String resetTo = detached ? targetBranch : current;
+            if (!resetTo.isEmpty() && refs.containsKey("refs/remotes/origin/" + resetTo)) {
+                git.launchCommand("reset", "--hard", "origin/" + resetTo);
+            }
+            clean();
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Strip out local commits by checking out and resetting every local branch.
+     */
+    public void stripLocalWithCheckouts() throws AdvancedSCMException {
         clean();
         List<String> repoBranchNames = getLocalBranchNames();
         for (String branch: repoBranchNames) {
@@ -182,6 +373,7 @@ public class GitBackend extends BaseBackend {
 
     public void clean(String revision) throws AdvancedSCMException {
         update(revision);
+        refSnapshot = null;
         try {
             git.launchCommand("reset", "--hard", "origin/" + revision);
         } catch (GitException exception) {
@@ -199,19 +391,15 @@ public class GitBackend extends BaseBackend {
             ObjectId rev;
             if (updateTo != null) {
                 update(updateTo);
-                rev = git.revParse(revision);
+                rev = resolve(revision);
             }
             else {
-                try {
-                    rev = git.revParse("feature/" + revision);
+                rev = resolveRef("feature/" + revision);
+                if (rev == null) {
+                    rev = resolveRef("origin/" + revision);
                 }
-                catch (GitException exception) {
-                    try {
-                        rev = git.revParse("origin/" + revision);
-                    }
-                    catch (GitException exc) {
-                        rev = git.revParse(revision);
-                    }
+                if (rev == null) {
+                    rev = resolve(revision);
                 }
             }
             EmailAddress address = new EmailAddress("dummy <dummy@foo.bar>");
@@ -224,12 +412,112 @@ public class GitBackend extends BaseBackend {
         }
     }
 
+    /**
+     * Test-merge with 'git merge-tree --write-tree', which merges in the object database only.
+     * Local branches are used when they exist, origin branches otherwise.
+     * Git before 2.38 does not support --write-tree, then the trivial merge of 'git merge-tree' is used,
+     * which does not detect conflicts of renames or of files and directories.
+     */
+    public boolean hasMergeConflicts(String revision, String target) throws AdvancedSCMException {
+        List<String> localBranches = getLocalBranchNames();
+        String ours = localBranches.contains(target) ? target : "origin/" + target;
+        String theirs = localBranches.contains(revision) ? revision : "origin/" + revision;
+        boolean writeTree = !writeTreeUnsupported;
+        try {
+            if (writeTree) {
+                git.launchCommand("merge-tree", "--write-tree", "--name-only", "--no-messages", ours, theirs);
+                return false;
+            }
+            String base = git.launchCommand("merge-base", ours, theirs).trim();
+            return git.launchCommand("merge-tree", base, ours, theirs).contains("\n+<<<<<<< .our");
+        }
+        catch (GitException exception) {
+            String message = exception.getMessage();
+            if (writeTree && message != null && message.contains("returned status code 1:")) {
+                return true;
+            }
+            if (writeTree && message != null && message.contains("returned status code 129:")) {
+                // Usage error of a git version without --write-tree.
+                listener.getLogger().println(
+                        "git merge-tree does not support --write-tree, falling back to its trivial merge, "
+                                + "which does not detect all conflicts.");
+                writeTreeUnsupported = true;
+                return hasMergeConflicts(revision, target);
+            }
+            // Like a missing branch or a broken repository, which must not pass as a merge without conflicts.
+            throw new AdvancedSCMException("Could not test-merge " + theirs + " into " + ours + ": " + message);
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    public String getContentId(String revision) throws AdvancedSCMException {
+        String ref = getLocalBranchNames().contains(revision) ? revision : "origin/" + revision;
+        try {
+            // Both candidates in one round trip, the branch wins over any other revision of that name.
+            for (ObjectId tree: git.lookup(ref + "^{tree}", revision + "^{tree}")) {
+                if (tree != null) {
+                    return tree.getName();
+                }
+            }
+            throw new UnknownRevisionException("Unknown revision " + revision);
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Merge origin/branch into the local branch, unless origin/branch has nothing new or both changed
+     * the same files since their merge base.
+     */
+    public boolean mergeRemoteChanges(String branch, String message, String username) throws AdvancedSCMException {
+        String remote = "origin/" + branch;
+        try {
+            try {
+                git.launchCommand("merge-base", "--is-ancestor", remote, branch);
+                return true;
+            }
+            catch (GitException exception) {
+                if (exception.getMessage() == null || !exception.getMessage().contains("returned status code 1:")) {
+                    // No remote branch yet, so nothing to merge.
+                    return true;
+                }
+            }
+            String base = git.launchCommand("merge-base", branch, remote).trim();
+            Set<String> overlap = changedFiles(base, branch);
+            overlap.retainAll(changedFiles(base, remote));
+            if (!overlap.isEmpty()) {
+                listener.getLogger().println("Both " + branch + " and " + remote + " changed " + overlap);
+                return false;
+            }
+        }
+        catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+        mergeWorkspaceWith(remote, branch);
+        commit(message, username);
+        return true;
+    }
+
+    private Set<String> changedFiles(String from, String to) throws InterruptedException {
+        Set<String> files = new LinkedHashSet<String>();
+        for (String line: git.launchCommand("diff", "--name-only", from, to).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                files.add(line.trim());
+            }
+        }
+        return files;
+    }
+
     public void commit(String message, String username) throws AdvancedSCMException {
         try {
             EmailAddress address = new EmailAddress(username);
             git.setAuthor(address.getName(), address.getAddress());
             git.setCommitter(address.getName(), address.getAddress());
             git.commit(message);
+            refSnapshot = null;
         }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
@@ -244,23 +532,66 @@ public class GitBackend extends BaseBackend {
     public void mergeHeads(String message, String username) throws AdvancedSCMException {
     }
 
+    /**
+     * Push all given branches which exist locally with one atomic 'git push', so either all of them are published
+     * or none is, and the transfer is negotiated only once.
+     */
     public void push(String... branchNames) throws AdvancedSCMException {
         List<String> repoBranchNames = getLocalBranchNames();
+        List<String> refSpecs = new ArrayList<String>();
+        for (String branch: branchNames) {
+            if (repoBranchNames.contains(branch)) {
+                refSpecs.add("refs/heads/" + branch + ":refs/heads/" + branch);
+            }
+        }
+        if (refSpecs.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<String>();
+        args.add("push");
+        args.add("--atomic");
+        args.add("origin");
+        args.addAll(refSpecs);
         try {
-            for (String branch: branchNames) {
-                if (repoBranchNames.contains(branch)) {
-                    git.push().to(new URIish(git.getRemoteUrl("origin"))).ref(branch).execute();
+            try {
+                git.launchCommand(args.toArray(new String[args.size()]));
+            }
+            catch (GitException exception) {
+                if (!isAtomicUnsupported(exception.getMessage())) {
+                    throw exception;
                 }
+                // Old git client or a server without atomic push support, still push in one go.
+                listener.getLogger().println("Atomic push is not supported, pushing without --atomic.");
+                args.remove("--atomic");
+                git.launchCommand(args.toArray(new String[args.size()]));
             }
+            // remote tracking branches were updated
+            invalidateBranches();
         }
-        catch (URISyntaxException exception) {
-            throw new AdvancedSCMException(exception.toString());
+        catch (GitException exception) {
+            String message = exception.getMessage();
+            if (message != null && (message.contains("non-fast-forward") || message.contains("fetch first"))) {
+                throw new PushCreatesNewRemoteHeadException(message);
+            }
+            throw new AdvancedSCMException(message);
         }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
         }
     }
 
+    private static boolean isAtomicUnsupported(String message) {
+        if (message == null) {
+            return false;
+        }
+        for (String error: ATOMIC_UNSUPPORTED) {
+            if (message.contains(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void pull() throws AdvancedSCMException {
         pull(null, "master");
     }
@@ -279,30 +610,63 @@ public class GitBackend extends BaseBackend {
         return;
     }
 
+    /**
+     * Fetch given branch from given remote into the 'feature' remote.
+     * The remote is kept between fetches, so its remote tracking branches make the next fetch incremental.
+     * When the mirror cache is enabled, the mirror is updated from the remote and the branch is fetched from it.
+     * The shared object store is used the same way, so the fetch only adds refs to the workspace.
+     * Without remote, origin is also fetched, so new commits and branches of the target repository are seen.
+     */
     public void pull(String remote, String branch) throws AdvancedSCMException {
         try {
             if (remote == null || remote.isEmpty()) {
                 remote = git.getRemoteUrl("origin");
+                git.launchCommand("fetch", "origin");
+            }
+            String url = remote;
+            if (mirrorCache != null) {
+                url = updateMirror(remote).getRemote();
             }
             try {
-                git.launchCommand("remote", "rm", "feature");
+                git.launchCommand("remote", "set-url", "feature", url);
             }
             catch (GitException exception) {
-                // when remote is new, can fail, but it's intentional
+                // remote does not exist yet
+                git.launchCommand("remote", "add", "feature", url);
             }
-            git.launchCommand("remote", "add", "feature", remote);
             try {
                 git.launchCommand("fetch", "feature", branch);
             }
             catch (GitException exception) {
                 // can be a new local branch, so can fail, but it's intentional
             }
+            invalidateBranches();
         }
         catch (InterruptedException exception) {
             throw new AdvancedSCMException(exception.toString());
         }
     }
 
+    private FilePath updateMirror(String remote) throws AdvancedSCMException {
+        try {
+            if (sharedObjects) {
+                return mirrorCache.update(remote, SharedObjectStore.updater(git));
+            }
+            return mirrorCache.update(remote, new MirrorCache.Updater() {
+                public void create(String url, FilePath mirror) throws Exception {
+                    git.launchCommand("clone", "--mirror", url, mirror.getRemote());
+                }
+
+                public void update(String url, FilePath mirror) throws Exception {
+                    git.launchCommand("--git-dir=" + mirror.getRemote(), "fetch", "--prune", "origin");
+                }
+            });
+        }
+        catch (Exception exception) {
+            throw new AdvancedSCMException("Failed to update mirror of " + remote + ": " + exception);
+        }
+    }
+
     public ReleaseBranch getReleaseBranch(String branch) throws ReleaseBranchInvalidException {
         return new ReleaseBranchImpl(branch, "master");
     }
@@ -315,6 +679,8 @@ public class GitBackend extends BaseBackend {
             try {
                 this.update("master");
                 git.checkout("HEAD", branch);
+                refSnapshot = null;
+                addLocalBranchToSnapshot(branch);
                 if (releaseFilePath != null && !releaseFilePath.isEmpty()
                         && releaseFileContent != null && !releaseFileContent.isEmpty()) {
                     this.createFile(releaseFilePath, releaseFileContent);
@@ -0,0 +1,590 @@
+package org.paylogic.jenkins.advancedscm.backends;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.plugins.git.GitSCM;
+import org.apache.tools.ant.taskdefs.email.EmailAddress;
+import org.eclipse.jgit.api.CreateBranchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.MergeCommand;
+import org.eclipse.jgit.api.MergeResult;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.advancedscm.backends.helpers.JGitWorkspace;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
+import org.paylogic.jenkins.advancedscm.exceptions.PushCreatesNewRemoteHeadException;
+import org.paylogic.jenkins.advancedscm.exceptions.UnknownRevisionException;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-process JGit Implementation of AdvancedSCMManager.
+ * All operations run inside the JVM of the node that holds the workspace, on one Repository handle per build,
+ * so no git processes are forked.
+ * Transports are handled by JGit itself, so remotes must be reachable without Jenkins credentials.
+ */
+public class JGitBackend extends BaseBackend {
+
+    private final JGitWorkspace git;
+
+    private final BuildListener listener;
+
+    /**
+     * Target branch of the build, the work tree is reset to it when HEAD is detached.
+     */
+    private final String targetBranch;
+
+    /**
+     * Snapshot of the local branch names, null until they are listed.
+     */
+    private Set<String> localBranchSnapshot;
+
+    /**
+     * Please do not instantiate objects of this class yourself, use SCMManagerFactory.
+     */
+    public JGitBackend(AbstractBuild build, Launcher launcher, BuildListener listener, GitSCM scm) throws Exception {
+        EnvVars environment = GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener);
+        FilePath path = GitBackend.getWorkingDirectory(build, listener, scm, environment);
+        this.listener = listener;
+        this.targetBranch = environment.get("TARGET_BRANCH", "");
+        this.git = JGitWorkspace.forWorkspace(build, path.absolutize());
+        this.repoPath = git.getWorkTree();
+    }
+
+    /**
+     * Run an operation on the node of the workspace and unwrap the exceptions it threw.
+     */
+    private <T> T act(JGitWorkspace.Operation<T> operation) throws AdvancedSCMException {
+        try {
+            return git.act(operation);
+        } catch (IOException exception) {
+            if (exception.getCause() instanceof AdvancedSCMException) {
+                throw (AdvancedSCMException) exception.getCause();
+            }
+            throw new AdvancedSCMException(exception.toString());
+        } catch (InterruptedException exception) {
+            throw new AdvancedSCMException(exception.toString());
+        }
+    }
+
+    /**
+     * Get remote branches, and put them in a List with Branches so it's nice to work with.
+     * @param all : get all or only open branches, git has no closed branches.
+     *
+     * @return List of Branches
+     */
+    protected List<Branch> listBranches(boolean all) throws AdvancedSCMException {
+        List<Branch> result = new ArrayList<Branch>();
+        for (Map.Entry<String, String> ref: act(listRefs(Constants.R_REMOTES)).entrySet()) {
+            String [] branchNameParts = ref.getKey().split("/");
+            String branchName = branchNameParts[branchNameParts.length - 1];
+            if (!branchName.equals(Constants.HEAD)) {
+                result.add(new Branch(branchName, null, ref.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get local branch names from the snapshot, only lists them when there is no snapshot yet.
+     * @return List of String
+     */
+    public List<String> getLocalBranchNames() throws AdvancedSCMException {
+        if (localBranchSnapshot == null) {
+            localBranchSnapshot = new LinkedHashSet<String>(act(listRefs(Constants.R_HEADS)).keySet());
+        }
+        return new ArrayList<String>(localBranchSnapshot);
+    }
+
+    private void addLocalBranchToSnapshot(String branch) {
+        if (localBranchSnapshot != null) {
+            localBranchSnapshot.add(branch);
+        }
+    }
+
+    public String getBranch() throws AdvancedSCMException {
+        return act(currentBranch());
+    }
+
+    public void update(String revision) throws AdvancedSCMException {
+        if (revision.isEmpty()) {
+            // Stay on the current branch.
+            return;
+        }
+        boolean create = !getLocalBranchNames().contains(revision);
+        act(checkout(revision, create));
+        if (create) {
+            addLocalBranchToSnapshot(revision);
+        }
+    }
+
+    public void updateClean(String revision) throws AdvancedSCMException {
+        update(revision);
+        clean();
+    }
+
+    public void stripLocal() throws AdvancedSCMException {
+        act(resetLocalBranches(targetBranch));
+    }
+
+    public void clean() throws AdvancedSCMException {
+        act(cleanWorkTree());
+    }
+
+    public void mergeWorkspaceWith(String revision, String updateTo) throws AdvancedSCMException {
+        String[] candidates;
+        if (updateTo != null) {
+            update(updateTo);
+            candidates = new String[] {revision};
+        } else {
+            candidates = new String[] {"feature/" + revision, "origin/" + revision, revision};
+        }
+        act(merge(candidates));
+    }
+
+    /**
+     * Test-merge with an in-core merger, which never touches the work tree or the index.
+     */
+    public boolean hasMergeConflicts(String revision, String target) throws AdvancedSCMException {
+        return act(testMerge(revision, target));
+    }
+
+    public String getContentId(String revision) throws AdvancedSCMException {
+        return act(treeOf(revision));
+    }
+
+    public void commit(String message, String username) throws AdvancedSCMException {
+        EmailAddress address = new EmailAddress(username);
+        act(commitAs(message, address.getName(), address.getAddress()));
+    }
+
+    /**
+     * Merge origin/branch into the local branch, unless origin/branch has nothing new or both changed
+     * the same files since their merge base.
+     */
+    public boolean mergeRemoteChanges(String branch, String message, String username) throws AdvancedSCMException {
+        List<String> overlap = act(overlappingChanges(branch));
+        if (overlap == null) {
+            return true;
+        }
+        if (!overlap.isEmpty()) {
+            listener.getLogger().println("Both " + branch + " and origin/" + branch + " changed " + overlap);
+            return false;
+        }
+        mergeWorkspaceWith("origin/" + branch, branch);
+        commit(message, username);
+        return true;
+    }
+
+    /**
+     * Merge possible current branch's heads. Not actual for git backend.
+     * @param message : String commit message
+     * @param username : String commit user name (with email)
+     */
+    public void mergeHeads(String message, String username) throws AdvancedSCMException {
+    }
+
+    /**
+     * Close given branch. Nothing has to be done in git backend.
+     * @param branch: String branch name.
+     * @param message : String with message to give this commit.
+     * @param username : String commit user name (with email)
+     */
+    public void closeBranch(String branch, String message, String username) {
+    }
+
+    public void push(String... branchNames) throws AdvancedSCMException {
+        List<String> refSpecs = new ArrayList<String>();
+        List<String> repoBranchNames = getLocalBranchNames();
+        for (String branch: branchNames) {
+            if (repoBranchNames.contains(branch)) {
+                refSpecs.add(Constants.R_HEADS + branch + ":" + Constants.R_HEADS + branch);
+            }
+        }
+        if (refSpecs.isEmpty()) {
+            return;
+        }
+        act(pushRefs(refSpecs));
+        // remote tracking branches were updated
+        invalidateBranches();
+    }
+
+    public void pull() throws AdvancedSCMException {
+        pull(null, "master");
+    }
+
+    public void pull(String remote) throws AdvancedSCMException {
+        pull(remote, "master");
+    }
+
+    public void pull(String remote, String branch) throws AdvancedSCMException {
+        act(fetch(remote, branch));
+        invalidateBranches();
+    }
+
+    public ReleaseBranch getReleaseBranch(String branch) throws ReleaseBranchInvalidException {
+        return new ReleaseBranchImpl(branch, "master");
+    }
+
+    public ReleaseBranch createReleaseBranch(
+            String branch, String releaseFilePath, String releaseFileContent, String message, String username)
+            throws AdvancedSCMException, ReleaseBranchInvalidException {
+        update("master");
+        act(checkout(branch, true, Constants.HEAD));
+        addLocalBranchToSnapshot(branch);
+        if (releaseFilePath != null && !releaseFilePath.isEmpty()
+                && releaseFileContent != null && !releaseFileContent.isEmpty()) {
+            try {
+                this.createFile(releaseFilePath, releaseFileContent);
+            } catch (Exception e) {
+                throw new AdvancedSCMException(e.getMessage());
+            }
+            act(add(releaseFilePath));
+            EmailAddress address = new EmailAddress(username);
+            act(commitAs(message, address.getName(), address.getName()));
+        }
+        return getReleaseBranch(branch);
+    }
+
+    /**
+     * Reset the work tree and remove untracked and ignored files, like 'git reset --hard' and 'git clean -fdx'.
+     */
+    private static void clean(Git git) throws Exception {
+        git.reset().setMode(ResetCommand.ResetType.HARD).call();
+        git.clean().setCleanDirectories(true).setIgnore(false).call();
+    }
+
+    private static JGitWorkspace.Operation<String> currentBranch() {
+        return new JGitWorkspace.Operation<String>() {
+            @Override
+            public String run(Git git) throws Exception {
+                return git.getRepository().getBranch();
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<Void> cleanWorkTree() {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                clean(git);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Reset all local branches which diverged from their origin counterparts, only the current branch is checked out.
+     * When HEAD is detached, the work tree is reset to given target branch.
+     */
+    private static JGitWorkspace.Operation<Void> resetLocalBranches(final String targetBranch) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                Repository repository = git.getRepository();
+                String fullBranch = repository.getFullBranch();
+                String current = fullBranch != null && fullBranch.startsWith(Constants.R_HEADS)
+                        ? repository.getBranch() : null;
+                for (Map.Entry<String, Ref> ref: repository.getRefDatabase().getRefs(Constants.R_HEADS).entrySet()) {
+                    ObjectId remote = repository.resolve(Constants.R_REMOTES + "origin/" + ref.getKey());
+                    if (remote != null && !remote.equals(ref.getValue().getObjectId())
+                            && !ref.getKey().equals(current)) {
+                        RefUpdate update = repository.updateRef(Constants.R_HEADS + ref.getKey());
+                        update.setExpectedOldObjectId(ref.getValue().getObjectId());
+                        update.setNewObjectId(remote);
+                        RefUpdate.Result result = update.forceUpdate();
+                        if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NEW
+                                && result != RefUpdate.Result.NO_CHANGE) {
+                            throw new AdvancedSCMException("Failed to reset " + ref.getKey() + ": " + result);
+                        }
+                    }
+                }
+                String resetTo = current != null ? current : targetBranch;
+                if (!resetTo.isEmpty() && repository.resolve(Constants.R_REMOTES + "origin/" + resetTo) != null) {
+                    git.reset().setMode(ResetCommand.ResetType.HARD).setRef("origin/" + resetTo).call();
+                }
+                clean(git);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Merge the first of the candidate revisions that exists into the work tree, without committing.
+     */
+    private static JGitWorkspace.Operation<Void> merge(final String[] candidates) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                ObjectId rev = null;
+                for (String candidate: candidates) {
+                    rev = git.getRepository().resolve(candidate);
+                    if (rev != null) {
+                        break;
+                    }
+                }
+                if (rev == null) {
+                    throw new UnknownRevisionException("Unknown revision " + candidates[candidates.length - 1]);
+                }
+                MergeResult result = git.merge()
+                        .include(rev)
+                        .setCommit(false)
+                        .setFastForward(MergeCommand.FastForwardMode.NO_FF)
+                        .call();
+                if (result.getMergeStatus() == MergeResult.MergeStatus.CONFLICTING) {
+                    throw new MergeConflictException(
+                            "conflicts during merge of " + rev.getName() + ": " + result.getConflicts().keySet());
+                } else if (!result.getMergeStatus().isSuccessful()) {
+                    throw new AdvancedSCMException(
+                            "Merge of " + rev.getName() + " failed: " + result.getMergeStatus());
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Merge revision into target in memory. Local branches are used when they exist, origin branches otherwise.
+     */
+    private static JGitWorkspace.Operation<Boolean> testMerge(final String revision, final String target) {
+        return new JGitWorkspace.Operation<Boolean>() {
+            @Override
+            public Boolean run(Git git) throws Exception {
+                Repository repository = git.getRepository();
+                ObjectId ours = resolveBranch(repository, target);
+                ObjectId theirs = resolveBranch(repository, revision);
+                return !MergeStrategy.RESOLVE.newMerger(repository, true).merge(ours, theirs);
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<String> treeOf(final String revision) {
+        return new JGitWorkspace.Operation<String>() {
+            @Override
+            public String run(Git git) throws Exception {
+                Repository repository = git.getRepository();
+                RevWalk walk = new RevWalk(repository);
+                try {
+                    return walk.parseCommit(resolveBranch(repository, revision)).getTree().getName();
+                } finally {
+                    walk.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return List of the files changed both on the local branch and on origin/branch since their merge base,
+     * null when origin/branch has nothing which the local branch does not have.
+     */
+    private static JGitWorkspace.Operation<List<String>> overlappingChanges(final String branch) {
+        return new JGitWorkspace.Operation<List<String>>() {
+            @Override
+            public List<String> run(Git git) throws Exception {
+                Repository repository = git.getRepository();
+                ObjectId local = repository.resolve(Constants.R_HEADS + branch);
+                ObjectId remote = repository.resolve(Constants.R_REMOTES + "origin/" + branch);
+                if (local == null || remote == null) {
+                    return null;
+                }
+                RevWalk walk = new RevWalk(repository);
+                try {
+                    RevCommit ours = walk.parseCommit(local);
+                    RevCommit theirs = walk.parseCommit(remote);
+                    if (walk.isMergedInto(theirs, ours)) {
+                        return null;
+                    }
+                    walk.reset();
+                    walk.setRevFilter(RevFilter.MERGE_BASE);
+                    walk.markStart(ours);
+                    walk.markStart(theirs);
+                    RevCommit base = walk.next();
+                    if (base != null) {
+                        walk.parseHeaders(base);
+                    }
+                    List<String> overlap = changedPaths(repository, base, ours);
+                    overlap.retainAll(changedPaths(repository, base, theirs));
+                    return overlap;
+                } finally {
+                    walk.release();
+                }
+            }
+        };
+    }
+
+    private static List<String> changedPaths(Repository repository, RevCommit from, RevCommit to) throws Exception {
+        List<String> paths = new ArrayList<String>();
+        TreeWalk walk = new TreeWalk(repository);
+        try {
+            if (from == null) {
+                walk.addTree(new EmptyTreeIterator());
+            } else {
+                walk.addTree(from.getTree());
+            }
+            walk.addTree(to.getTree());
+            walk.setRecursive(true);
+            walk.setFilter(TreeFilter.ANY_DIFF);
+            while (walk.next()) {
+                paths.add(walk.getPathString());
+            }
+        } finally {
+            walk.release();
+        }
+        return paths;
+    }
+
+    private static ObjectId resolveBranch(Repository repository, String name) throws Exception {
+        ObjectId id = repository.resolve(name);
+        if (id == null) {
+            id = repository.resolve("origin/" + name);
+        }
+        if (id == null) {
+            throw new UnknownRevisionException("Unknown revision " + name);
+        }
+        return id;
+    }
+
+    private static JGitWorkspace.Operation<Void> pushRefs(final List<String> refSpecs) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                List<RefSpec> specs = new ArrayList<RefSpec>();
+                for (String spec: refSpecs) {
+                    specs.add(new RefSpec(spec));
+                }
+                for (PushResult result: git.push().setRemote("origin").setRefSpecs(specs).call()) {
+                    for (RemoteRefUpdate update: result.getRemoteUpdates()) {
+                        switch (update.getStatus()) {
+                            case OK:
+                            case UP_TO_DATE:
+                                break;
+                            case REJECTED_NONFASTFORWARD:
+                                throw new PushCreatesNewRemoteHeadException(
+                                        "Push of " + update.getRemoteName() + " rejected: non-fast-forward");
+                            default:
+                                throw new AdvancedSCMException("Push of " + update.getRemoteName() + " failed: "
+                                        + update.getStatus() + " " + update.getMessage());
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<Void> fetch(final String remote, final String branch) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                StoredConfig config = git.getRepository().getConfig();
+                String url = remote;
+                if (url == null || url.isEmpty()) {
+                    url = config.getString("remote", "origin", "url");
+                    git.fetch().setRemote("origin").call();
+                }
+                config.setString("remote", "feature", "url", url);
+                config.setString("remote", "feature", "fetch", "+refs/heads/*:refs/remotes/feature/*");
+                config.save();
+                try {
+                    git.fetch().setRemote("feature").setRefSpecs(new RefSpec(
+                            "+" + Constants.R_HEADS + branch + ":" + Constants.R_REMOTES + "feature/" + branch))
+                            .call();
+                } catch (Exception exception) {
+                    // can be a new local branch, so can fail, but it's intentional
+                }
+                return null;
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<Void> add(final String filePattern) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                git.add().addFilepattern(filePattern).call();
+                return null;
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<LinkedHashMap<String, String>> listRefs(final String prefix) {
+        return new JGitWorkspace.Operation<LinkedHashMap<String, String>>() {
+            @Override
+            public LinkedHashMap<String, String> run(Git git) throws Exception {
+                LinkedHashMap<String, String> refs = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, Ref> ref: git.getRepository().getRefDatabase().getRefs(prefix).entrySet()) {
+                    refs.put(ref.getKey(), ref.getValue().getObjectId().getName());
+                }
+                return refs;
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<Void> checkout(String branch, boolean create) {
+        return checkout(branch, create, "origin/" + branch);
+    }
+
+    private static JGitWorkspace.Operation<Void> checkout(
+            final String branch, final boolean create, final String startPoint) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                if (create) {
+                    git.checkout()
+                            .setCreateBranch(true)
+                            .setName(branch)
+                            .setStartPoint(startPoint)
+                            .setUpstreamMode(startPoint.equals(Constants.HEAD)
+                                    ? CreateBranchCommand.SetupUpstreamMode.NOTRACK
+                                    : CreateBranchCommand.SetupUpstreamMode.TRACK)
+                            .call();
+                } else {
+                    // Not forced, uncommitted changes which would be overwritten fail it, like in GitBackend.
+                    git.checkout().setName(branch).call();
+                }
+                return null;
+            }
+        };
+    }
+
+    private static JGitWorkspace.Operation<Void> commitAs(
+            final String message, final String name, final String email) {
+        return new JGitWorkspace.Operation<Void>() {
+            @Override
+            public Void run(Git git) throws Exception {
+                git.commit().setMessage(message).setAuthor(name, email).setCommitter(name, email).call();
+                return null;
+            }
+        };
+    }
+}
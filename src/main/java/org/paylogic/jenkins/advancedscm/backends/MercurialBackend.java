@@ -1,12 +1,21 @@
 package org.paylogic.jenkins.advancedscm.backends;
 
+import hudson.AbortException;
+import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.plugins.mercurial.MercurialSCM;
 import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
 import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
 import org.paylogic.jenkins.advancedscm.backends.helpers.AdvancedHgExe;
+import org.paylogic.jenkins.advancedscm.backends.helpers.HgCommandException;
+import org.paylogic.jenkins.advancedscm.backends.helpers.HgSharedStore;
+import org.paylogic.jenkins.advancedscm.backends.helpers.JsonStreamReader;
+import org.paylogic.jenkins.advancedscm.backends.helpers.MirrorCache;
 import org.paylogic.jenkins.advancedscm.exceptions.*;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
@@ -15,19 +24,56 @@ import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
 /**
  * Mercurial Implementation of AdvancedSCMManager
+ *
+ * When the workspace shares the store of a pooled repository (see HgSharedStore), commits are made secret,
+ * and the secret commits of other builds are ignored: branch names are resolved to the newest head which is
+ * not one of them. The own commits are made draft only to push them, and only those are stripped.
+ * Changesets pulled from other repositories than the remote are made secret as well, so they are only used by
+ * the builds which pulled them, until one of those pushes them.
+ *
+ * Listings are read from the JSON output of hg. Failures are classified by the return code and the error
+ * output of hg, see HgCommandException, never by searching the output.
  */
 @Log
 public class MercurialBackend extends BaseBackend {
 
+    /**
+     * Locks of the shared repositories, to resolve revisions while no other build publishes its commits.
+     */
+    private static final Map<String, Object> SHARE_LOCKS = new HashMap<String, Object>();
+
     private String hgExe;
     private AdvancedHgExe advancedHgExe;
     private AbstractBuild build;
     private PrintStream l;
+    private MirrorCache mirrorCache;
+
+    /**
+     * Lock of the shared repository of the workspace, null when the workspace has its own store.
+     */
+    private Object shareLock;
+
+    /**
+     * Secret commits made by this manager in the shared store.
+     */
+    private final List<String> ownedCommits = new ArrayList<String>();
+
+    /**
+     * Secret changesets pulled by this manager from other repositories than the remote, into the shared store.
+     * They are not stripped, because other builds can have pulled them too.
+     */
+    private final List<String> pulledCommits = new ArrayList<String>();
 
     /**
      * Please do not instantiate objects of this class yourself, use SCMManagerFactory.
@@ -37,31 +83,182 @@ public class MercurialBackend extends BaseBackend {
         this.l = listener.getLogger();
         this.advancedHgExe = new AdvancedHgExe(scm, launcher, build, listener);
         this.repoPath = this.advancedHgExe.getFilePath();
+        String sharedPath = HgSharedStore.getSharedPath(repoPath);
+        if (sharedPath != null) {
+            String key = build.getBuiltOnStr() + ":" + sharedPath;
+            synchronized (SHARE_LOCKS) {
+                shareLock = SHARE_LOCKS.get(key);
+                if (shareLock == null) {
+                    shareLock = new Object();
+                    SHARE_LOCKS.put(key, shareLock);
+                }
+            }
+        } else {
+            // The shared repository already works as mirror.
+            this.mirrorCache = MirrorCache.forBuild(
+                    build, listener, GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener));
+        }
+    }
+
+    /**
+     * @return String with a revset of the commits of this manager which are still secret.
+     */
+    private String ownedRevset() {
+        if (ownedCommits.isEmpty()) {
+            return "none()";
+        }
+        return "(" + StringUtils.join(ownedCommits, " or ") + ")";
     }
 
-    public List<Branch> getBranches(boolean all) {
-        String rawBranches = "";
+    /**
+     * @return String with a revset of the secret changesets this manager uses: its commits and pulled changesets.
+     */
+    private String usedRevset() {
+        List<String> used = new ArrayList<String>(ownedCommits);
+        used.addAll(pulledCommits);
+        if (used.isEmpty()) {
+            return "none()";
+        }
+        return "(" + StringUtils.join(used, " or ") + ")";
+    }
+
+    /**
+     * @return String with a revset of the revisions this manager uses, so without secret changesets of other builds.
+     */
+    private String visibleRevset() {
+        return "(not secret() or " + usedRevset() + ")";
+    }
+
+    /**
+     * @return String with a revset of the revisions of given named branch.
+     */
+    private static String branchRevset(String branch) {
+        return "branch('literal:" + branch.replace("\\", "\\\\").replace("'", "\\'") + "')";
+    }
+
+    /**
+     * Resolve a branch name in a shared store to its newest visible head.
+     * @return String with the node of the head, or the revision itself when it is not a branch name.
+     */
+    private String resolve(String revision) throws IOException, InterruptedException {
+        if (shareLock == null || revision == null || revision.isEmpty()) {
+            return revision;
+        }
+        String revset = "max(" + branchRevset(revision) + " and " + visibleRevset() + ")";
+        String node;
+        synchronized (shareLock) {
+            try {
+                node = node(revset);
+            } catch (AbortException e) {
+                // Not a branch name.
+                return revision;
+            }
+        }
+        return node.isEmpty() ? revision : node;
+    }
+
+    /**
+     * @return String with the node of the first changeset of given revset, empty when it has none.
+     */
+    private String node(String revset) throws IOException, InterruptedException {
+        List<String> nodes = this.advancedHgExe.logNodes(revset);
+        return nodes.isEmpty() ? "" : nodes.get(0);
+    }
+
+    /**
+     * Run given commit, and record it as owned when the store is shared.
+     */
+    private String commitOwned(String message, String username, String... extraArgs)
+            throws IOException, InterruptedException {
+        if (shareLock == null) {
+            return this.advancedHgExe.commit(message, username, extraArgs);
+        }
+        List<String> args = new ArrayList<String>(Arrays.asList(extraArgs));
+        args.add("--config");
+        args.add("phases.new-commit=secret");
+        String output = this.advancedHgExe.commit(message, username, args.toArray(new String[args.size()]));
+        String node = node(". and secret()");
+        if (!node.isEmpty() && !ownedCommits.contains(node)) {
+            ownedCommits.add(node);
+        }
+        return output;
+    }
+
+    protected List<Branch> listBranches(boolean all) throws AdvancedSCMException {
+        if (shareLock != null) {
+            return listVisibleBranches(all);
+        }
         String[] args = new String[] {};
         if (all) {
             args = new String[]{"-c"};
         }
         try {
-            rawBranches = this.advancedHgExe.branches(args);
+            return parseBranches(this.advancedHgExe.branches(args));
         } catch (Exception e) {
+            // Do not let a failed listing end up in the branch snapshot as an empty list.
             l.append(e.toString());
-            return new ArrayList<Branch>();
+            throw new AdvancedSCMException(e.getMessage());
         }
-        List<Branch> list = new ArrayList<Branch>();
-        for (String line: rawBranches.split("\n")) {
-            // line should contain: <branchName>                 <revision>:<hash>  (yes, with lots of whitespace)
-            String[] seperatedByWhitespace = line.split("\\s+");
-            String branchName = seperatedByWhitespace[0];
-            String[] seperatedByColon = seperatedByWhitespace[1].split(":");
-            int revision = Integer.parseInt(seperatedByColon[0]);
-            String hash = seperatedByColon[1];
+    }
 
+    /**
+     * List the branches of a shared store with their newest visible head, like 'hg branches' does.
+     * Heads of the visible revisions are branch heads, or parents of secret commits of other builds.
+     */
+    private List<Branch> listVisibleBranches(boolean all) throws AdvancedSCMException {
+        String revset = "sort((head() or parents(secret() and not " + usedRevset() + ")) and "
+                + visibleRevset() + (all ? "" : " and not closed()") + ", -rev)";
+        List<Branch> heads;
+        try {
+            synchronized (shareLock) {
+                heads = parseBranches(this.advancedHgExe.log(revset));
+            }
+        } catch (Exception e) {
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        Map<String, Branch> branches = new LinkedHashMap<String, Branch>();
+        for (Branch branch: heads) {
+            if (!branches.containsKey(branch.getBranchName())) {
+                branches.put(branch.getBranchName(), branch);
+            }
+        }
+        return new ArrayList<Branch>(branches.values());
+    }
+
+    /**
+     * Parse the JSON output of 'hg branches', or of 'hg log', which has the same branch, rev and node members.
+     * @return List of Branches
+     */
+    public static List<Branch> parseBranches(JsonStreamReader json) throws IOException {
+        List<Branch> list = new ArrayList<Branch>();
+        if (!json.beginArray()) {
+            return list;
+        }
+        while (json.hasNext()) {
+            String branchName = null;
+            Integer revision = null;
+            String hash = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if ("branch".equals(name)) {
+                    branchName = json.nextString();
+                } else if ("rev".equals(name)) {
+                    revision = (int) json.nextLong();
+                } else if ("node".equals(name)) {
+                    hash = json.nextString();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            if (branchName == null) {
+                throw new IOException("Branch without name in output of hg");
+            }
             list.add(new Branch(branchName, revision, hash));
         }
+        json.endArray();
         return list;
     }
 
@@ -76,162 +273,300 @@ public class MercurialBackend extends BaseBackend {
     }
 
     public void update(String revision) throws AdvancedSCMException{
-        String output = "";
         try {
-            output = this.advancedHgExe.update(revision);
+            this.advancedHgExe.update(resolve(revision));
+        } catch (HgCommandException e) {
+            log.log(Level.SEVERE, "Exception occured during update of workspace.", e);
+            l.append(e.toString());
+            if (e.getError().contains("unknown revision")) {
+                throw new UnknownRevisionException(e.getMessage());
+            }
+            throw new AdvancedSCMException(e.getMessage());
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occured during update of workspace.", e);
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
-        if (output.contains("abort: unknown revision")) {
-            throw new UnknownRevisionException(output);
-        } else if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
-        }
     }
 
     public void updateClean(String revision) throws AdvancedSCMException{
-        String output = "";
         try {
-            output = this.advancedHgExe.updateClean(revision);
+            this.advancedHgExe.updateClean(resolve(revision));
+        } catch (HgCommandException e) {
+            log.log(Level.SEVERE, "Exception occurred during update of workspace.", e);
+            l.append(e.toString());
+            if (e.getError().contains("unknown revision")) {
+                throw new UnknownRevisionException(e.getMessage());
+            }
+            throw new AdvancedSCMException(e.getMessage());
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occurred during update of workspace.", e);
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
-        if (output.contains("abort: unknown revision")) {
-            throw new UnknownRevisionException(output);
-        } else if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
-        }
         clean();
     }
 
     public void stripLocal() throws AdvancedSCMException {
+        if (shareLock != null) {
+            stripOwned();
+            return;
+        }
         try {
             String[] out = this.advancedHgExe.out();
             if (out.length > 0) {
-                String output = "";
                 try {
-                    output = this.advancedHgExe.strip(out);
+                    this.advancedHgExe.strip(out);
                 } catch (Exception e) {
                     log.log(Level.SEVERE, "Exception occurred during strip.", e);
                     l.append(e.toString());
                     throw new AdvancedSCMException(e.getMessage());
                 }
-                if (output.contains("abort:")) {
-                    throw new AdvancedSCMException(output);
-                }
+                invalidateBranches();
             }
         } catch (Exception e) {
             throw new AdvancedSCMException(e.getMessage());
         }
     }
 
+    /**
+     * Strip the commits of this manager from the shared store, the store holds commits of other builds too.
+     */
+    private void stripOwned() throws AdvancedSCMException {
+        if (ownedCommits.isEmpty()) {
+            return;
+        }
+        try {
+            synchronized (shareLock) {
+                String[] args = {"-r", ownedRevset()};
+                this.advancedHgExe.strip(args);
+            }
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred during strip.", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        ownedCommits.clear();
+        invalidateBranches();
+    }
+
     public void clean() throws AdvancedSCMException{
-        String output = "";
         try {
-            output = this.advancedHgExe.clean();
+            this.advancedHgExe.clean();
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occured during cleaning of workspace.", e);
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
-        if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
-        }
     }
 
     public void closeBranch(String branch, String message, String username) throws AdvancedSCMException {
-        String output = "";
         update(branch);
         try {
-            output = this.advancedHgExe.commit(message, username, "--close-branch");
+            commitOwned(message, username, "--close-branch");
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occured while trying to close branch commit.");
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
-
-        if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
-        }
+        removeClosedBranchFromSnapshot(branch);
     }
 
     public void mergeWorkspaceWith(String revision, String updateTo) throws AdvancedSCMException {
         if (updateTo != null) {
             this.update(updateTo);
         }
-        String output = "";
         try {
-            output = this.advancedHgExe.merge(revision);
+            this.advancedHgExe.merge(resolve(revision));
+        } catch (HgCommandException e) {
+            log.log(Level.SEVERE, "Exception occurred during merge of workspace with " + revision + ".", e);
+            l.append(e.toString());
+            throw mergeFailure(e);
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occurred during merge of workspace with " + revision + ".", e);
             l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+    }
 
-            if (output.contains("conflicts during merge") || e.toString().contains("conflicts during merge")) {
-                log.log(Level.INFO, "Throwing MergeConflictException.");
-                throw new MergeConflictException(output);
+    /**
+     * Classify a failed 'hg merge': it returns 1 when it left files unresolved, and aborts when it has nothing to do.
+     */
+    private static AdvancedSCMException mergeFailure(HgCommandException e) {
+        if (e.getReturnCode() == 1) {
+            log.log(Level.INFO, "Throwing MergeConflictException.");
+            return new MergeConflictException(e.getMessage());
+        } else if (e.getError().contains("has no effect")) {
+            return new MergeWontHaveEffectException(e.getMessage());
+        }
+        return new AdvancedSCMException(e.getMessage());
+    }
+
+    /**
+     * Merge the newest pulled public head of the branch into its newest local head.
+     * The remote has to be publishing, so its changesets are public once pulled.
+     */
+    public boolean mergeRemoteChanges(String branch, String message, String username) throws AdvancedSCMException {
+        String heads = "head() and " + branchRevset(branch);
+        String ours;
+        String theirs;
+        Set<String> overlap;
+        try {
+            theirs = node("max(" + heads + " and public())");
+            if (shareLock != null) {
+                synchronized (shareLock) {
+                    ours = node("max(" + heads + " and not public() and " + visibleRevset() + ")");
+                }
             } else {
-                throw new AdvancedSCMException(e.getMessage());
+                ours = node("max(" + heads + " and not public())");
+            }
+            if (theirs.isEmpty() || ours.isEmpty()) {
+                return true;
             }
+            String base = node("ancestor(" + ours + ", " + theirs + ")");
+            overlap = changedFiles(base, ours);
+            overlap.retainAll(changedFiles(base, theirs));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Exception occurred while comparing the heads of " + branch + ".", e);
+            l.append(e.toString());
+            throw new AdvancedSCMException(e.getMessage());
+        }
+        if (!overlap.isEmpty()) {
+            l.append("Both the local and the remote head of " + branch + " changed " + overlap + "\n");
+            return false;
         }
+        mergeWorkspaceWith(theirs, ours);
+        commit(message, username);
+        return true;
+    }
 
-        if (output.contains("abort: merging") && output.contains("has no effect")) {
-            throw new MergeWontHaveEffectException(output);
-        } else if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
+    private Set<String> changedFiles(String from, String to) throws IOException, InterruptedException {
+        Set<String> files = new LinkedHashSet<String>();
+        for (String line: this.advancedHgExe.changedFiles(from, to).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                files.add(line.trim());
+            }
         }
+        return files;
     }
 
+    /**
+     * Merge the other head of the current branch, if there is one. When hg aborts, like when there is
+     * nothing to merge, the heads are left as they are.
+     */
     public void mergeHeads(String message, String username) throws AdvancedSCMException {
-        String output = "";
         try {
-            output = this.advancedHgExe.merge("");
+            String revision = "";
+            if (shareLock != null) {
+                // Without revision hg would merge with secret commits of other builds too.
+                synchronized (shareLock) {
+                    revision = node("max((head() or parents(secret() and not " + usedRevset()
+                            + ")) and branch(.) and " + visibleRevset() + " and not ancestors(.))");
+                }
+            }
+            if (shareLock == null || !revision.isEmpty()) {
+                this.advancedHgExe.merge(revision);
+            }
+        } catch (HgCommandException e) {
+            if (e.getReturnCode() == 1) {
+                log.log(Level.SEVERE, "Exception occurred during merge of the heads.", e);
+                l.append(e.toString());
+                throw mergeFailure(e);
+            }
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occurred during merge of the heads.", e);
             l.append(e.toString());
-
-            if (output.contains("conflicts during merge") || e.toString().contains("conflicts during merge")) {
-                log.log(Level.INFO, "Throwing MergeConflictException.");
-                throw new MergeConflictException(output);
-            } else {
-                throw new AdvancedSCMException(e.getMessage());
-            }
+            throw new AdvancedSCMException(e.getMessage());
         }
 
         commit(message, username);
     }
 
+    /**
+     * Mercurial can only merge in a working copy, so conflicts are not detected up front.
+     * @return false
+     */
+    public boolean hasMergeConflicts(String revision, String target) {
+        return false;
+    }
+
+    /**
+     * The manifest with file revision hashes identifies the content, file revision hashes include their history.
+     */
+    public String getContentId(String revision) throws AdvancedSCMException {
+        try {
+            return Util.getDigestOf(this.advancedHgExe.manifest(resolve(revision)));
+        } catch (Exception e) {
+            throw new UnknownRevisionException(e.getMessage());
+        }
+    }
+
     public void commit(String message, String username) throws AdvancedSCMException {
-        String output = "";
         try {
-            output = this.advancedHgExe.commit(message, username);
+            commitOwned(message, username);
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception occurred during commit.", e);
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
-        if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
-        }
+        invalidateBranchHeads();
     }
 
     public void push(String... branchNames) throws AdvancedSCMException {
-        String output = "";
         try {
-            output = this.advancedHgExe.push(branchNames);
+            if (shareLock != null) {
+                pushShared(branchNames);
+            } else {
+                this.advancedHgExe.push(branchNames);
+            }
+        } catch (HgCommandException e) {
+            log.log(Level.SEVERE, "Execption during push :(", e);
+            l.append(e.toString());
+            if (e.getError().contains("push creates new remote head")) {
+                throw new PushCreatesNewRemoteHeadException(e.getMessage());
+            }
+            throw new AdvancedSCMException(e.getMessage());
         } catch (Exception e) {
             log.log(Level.SEVERE, "Execption during push :(", e);
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
+    }
 
-        if (output.contains("abort: push creates new remote head")) {
-            throw new PushCreatesNewRemoteHeadException(output);
-        } else if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
+    /**
+     * Push the visible heads of given branches from a shared store.
+     * The own commits to push are made draft while no other build resolves revisions, and secret again
+     * when the push fails. Once pushed, they are no longer owned, so they are not stripped.
+     */
+    private void pushShared(String... branchNames) throws IOException, InterruptedException {
+        synchronized (shareLock) {
+            String[] heads = new String[branchNames.length];
+            for (int i = 0; i < branchNames.length; i++) {
+                heads[i] = resolve(branchNames[i]);
+            }
+            if (heads.length == 0) {
+                return;
+            }
+            String published = "(" + usedRevset() + " and ancestors(" + StringUtils.join(heads, " or ") + "))";
+            boolean secret = !ownedCommits.isEmpty() || !pulledCommits.isEmpty();
+            if (secret) {
+                this.advancedHgExe.phase("draft", false, published);
+            }
+            boolean pushed = false;
+            try {
+                this.advancedHgExe.pushRevisions(heads);
+                pushed = true;
+            } finally {
+                if (!pushed) {
+                    if (secret) {
+                        this.advancedHgExe.phase("secret", true, published);
+                    }
+                } else {
+                    List<String> nodes = this.advancedHgExe.logNodes(published);
+                    ownedCommits.removeAll(nodes);
+                    pulledCommits.removeAll(nodes);
+                }
+            }
         }
     }
 
@@ -243,11 +578,24 @@ public class MercurialBackend extends BaseBackend {
         this.pull(remote, "");
     }
 
+    /**
+     * Pull changes from given remote, or from the default path when no remote is given.
+     * When the mirror cache is enabled, the mirror is updated from the remote and changes are pulled from it.
+     */
     public void pull(String remote, String branch) throws AdvancedSCMException {
-        String output = "";
         try {
-            if (remote == null || remote.isEmpty()) {
-                output = this.advancedHgExe.pullChanges();
+            if (mirrorCache != null) {
+                String url = remote;
+                if (url == null || url.isEmpty()) {
+                    url = this.advancedHgExe.defaultPath();
+                }
+                remote = updateMirror(url).getRemote();
+            }
+            if (shareLock != null) {
+                pullShared(remote, branch);
+            }
+            else if (remote == null || remote.isEmpty()) {
+                this.advancedHgExe.pullChanges();
             }
             else if (branch.isEmpty()) {
                 remote = this.advancedHgExe.pullChanges(remote);
@@ -260,9 +608,59 @@ public class MercurialBackend extends BaseBackend {
             l.append(e.toString());
             throw new AdvancedSCMException(e.getMessage());
         }
+        invalidateBranches();
+    }
 
-        if (output.contains("abort:")) {
-            throw new AdvancedSCMException(output);
+    /**
+     * Pull into the shared store while no other build resolves revisions or pulls.
+     * The changesets pulled from another repository than the remote are made secret, and used by this manager.
+     */
+    private void pullShared(String remote, String branch) throws IOException, InterruptedException {
+        synchronized (shareLock) {
+            if (remote == null || remote.isEmpty()) {
+                this.advancedHgExe.pullChanges();
+                return;
+            }
+            boolean fork = !remote.equals(this.advancedHgExe.defaultPath());
+            String before = fork ? node("tip") : null;
+            String head = fork && !branch.isEmpty() ? this.advancedHgExe.identify(remote, branch) : null;
+            if (branch.isEmpty()) {
+                this.advancedHgExe.pullChanges(remote);
+            } else {
+                this.advancedHgExe.pullChanges(remote, branch);
+            }
+            if (!fork) {
+                return;
+            }
+            String pulled = "((" + before + ": and not " + before + ") and public())";
+            if (head != null) {
+                // Changesets of the branch can already be in the store, secret for other builds which pulled them.
+                pulled = "(ancestors(" + head + ") and (" + pulled + " or (secret() and not " + ownedRevset() + ")))";
+            }
+            if (!this.advancedHgExe.logNodes(pulled + " and public()").isEmpty()) {
+                this.advancedHgExe.phase("secret", true, pulled + " and public()");
+            }
+            for (String node: this.advancedHgExe.logNodes(pulled)) {
+                if (!pulledCommits.contains(node)) {
+                    pulledCommits.add(node);
+                }
+            }
+        }
+    }
+
+    private FilePath updateMirror(String remote) throws AdvancedSCMException {
+        try {
+            return mirrorCache.update(remote, new MirrorCache.Updater() {
+                public void create(String url, FilePath mirror) throws Exception {
+                    advancedHgExe.cloneMirror(url, mirror);
+                }
+
+                public void update(String url, FilePath mirror) throws Exception {
+                    advancedHgExe.pullMirror(url, mirror);
+                }
+            });
+        } catch (Exception e) {
+            throw new AdvancedSCMException("Failed to update mirror of " + remote + ": " + e);
         }
     }
 
@@ -276,13 +674,19 @@ public class MercurialBackend extends BaseBackend {
     {
         try {
             this.update("default");
-            this.advancedHgExe.branch(branch);
+            if (shareLock != null) {
+                // Another build can have a secret commit on a new branch of the same name.
+                this.advancedHgExe.branch(branch, "--force");
+            } else {
+                this.advancedHgExe.branch(branch);
+            }
             if (releaseFilePath != null && !releaseFilePath.isEmpty()
                     && releaseFileContent != null && !releaseFileContent.isEmpty()) {
                 this.createFile(releaseFilePath, releaseFileContent);
                 this.advancedHgExe.add(releaseFilePath, releaseFileContent);
             }
-            this.advancedHgExe.commit(message, username);
+            commitOwned(message, username);
+            addBranchToSnapshot(branch);
             return getReleaseBranch(branch);
         } catch (Exception e) {
             throw new AdvancedSCMException(e.getMessage());
@@ -1,6 +1,6 @@
 package org.paylogic.jenkins.advancedscm.backends.helpers;
 
-import hudson.AbortException;
+import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
@@ -10,12 +10,19 @@ import hudson.plugins.mercurial.MercurialSCM;
 import hudson.util.ArgumentListBuilder;
 import lombok.Getter;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
 
 import javax.annotation.CheckForNull;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class AdvancedHgExe extends HgExe {
@@ -26,7 +33,22 @@ public class AdvancedHgExe extends HgExe {
     public static int DEFAULT_TIMEOUT = 6 * 60; // 6 minutes (time is in seconds)
     public static int DEFAULT_PUSH_TIMEOUT = 60 * 60 * 60; // one hour (time is in seconds)
 
+    /**
+     * Command server shared by all steps of the build, null when not enabled.
+     */
+    private HgCommandServer commandServer;
+
+    private final BuildTimeline timeline;
+
     public AdvancedHgExe(MercurialSCM scm, Launcher launcher, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        this(scm, launcher, build, listener, GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener));
+    }
+
+    /**
+     * Create with given build environment, for use before the gatekeeper build context can compute it.
+     */
+    public AdvancedHgExe(MercurialSCM scm, Launcher launcher, AbstractBuild build, TaskListener listener,
+                         EnvVars environment) throws IOException, InterruptedException {
         super(scm, launcher, build, listener);
         FilePath path = build.getWorkspace();
 
@@ -35,35 +57,163 @@ public class AdvancedHgExe extends HgExe {
         }
 
         this.filePath = path;
+        this.timeline = BuildTimeline.forBuild(build);
+        if (HgCommandServer.isEnabled(environment)) {
+            this.commandServer = HgCommandServer.forWorkspace(build, path);
+        }
     }
 
+    /**
+     * Lines of standard output which are returned by stream, as they tell what a command did.
+     * Failures are not searched for in the output, they are classified by return code and error output,
+     * see HgCommandException.
+     */
+    public static final String[] OUTPUT_MARKERS = {
+            "conflicts during merge", "conflicts while merging", "unresolved"};
+
     /**
      * Runs the command and captures the output.
+     * Only use this for commands of which the output has to be parsed, output of other commands should be streamed.
+     * @throws HgCommandException when the return code is not one of given return codes
      */
     public String popen(FilePath repository, TaskListener listener, int timeout, ArgumentListBuilder args,
                         int[] returnCodes)
             throws IOException, InterruptedException {
-        args = seed(false).add(args.toCommandArray());
+        return capture(repository, listener, timeout, args, returnCodes).toString("UTF-8");
+    }
+
+    /**
+     * Runs the command with the JSON template and captures the output.
+     * @return JsonStreamReader over the output, which has no array at all when the command printed nothing.
+     * @throws HgCommandException when the return code is not one of given return codes
+     */
+    public JsonStreamReader popenJson(FilePath repository, TaskListener listener, int timeout,
+                                      ArgumentListBuilder args, int[] returnCodes)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream data = capture(repository, listener, timeout, args.add("-Tjson"), returnCodes);
+        return new JsonStreamReader(new InputStreamReader(new ByteArrayInputStream(data.toByteArray()), "UTF-8"));
+    }
 
+    private ByteArrayOutputStream capture(FilePath repository, TaskListener listener, int timeout,
+                                          ArgumentListBuilder args, int[] returnCodes)
+            throws IOException, InterruptedException {
         ByteArrayOutputStream data = new ByteArrayOutputStream();
-        if (ArrayUtils.contains(returnCodes,
-                joinWithPossibleTimeout(launch(args).pwd(repository).stdout(data), timeout, listener))) {
-            return data.toString();
+        ScanningOutputStream error = new ScanningOutputStream(listener.getLogger(), ScanningOutputStream.ALL_LINES);
+        int returnCode;
+        try {
+            returnCode = run(repository, listener, timeout, args, data, error);
+        } finally {
+            error.close();
+        }
+
+        if (ArrayUtils.contains(returnCodes, returnCode)) {
+            return data;
         } else {
-            // We override this because we don't want sensitive data in error logs.
-            String command = "";
-            for (String arg: args.toList()) {
-                if (!arg.contains("auth") || !arg.contains("ssh")) {
-                    command += arg;
-                } else {
-                    command += "********";
-                }
-                command += " ";
-            }
-            listener.error("Failed to run " + command);
+            listener.error("Failed to run " + maskCommand(args));
             listener.getLogger().write(data.toByteArray());
-            throw new AbortException(data.toString());
+            throw new HgCommandException(returnCode, error.getMatched());
+        }
+    }
+
+    /**
+     * Runs the command and forwards its output line by line to the build log.
+     * @return String with only the lines of output which contain one of the OUTPUT_MARKERS.
+     * @throws HgCommandException when the return code is not one of given return codes
+     */
+    public String stream(FilePath repository, TaskListener listener, int timeout, ArgumentListBuilder args,
+                         int[] returnCodes)
+            throws IOException, InterruptedException {
+        ScanningOutputStream data = new ScanningOutputStream(listener.getLogger(), OUTPUT_MARKERS);
+        ScanningOutputStream error = new ScanningOutputStream(listener.getLogger(), ScanningOutputStream.ALL_LINES);
+        int returnCode;
+        try {
+            returnCode = run(repository, listener, timeout, args, data, error);
+        } finally {
+            data.close();
+            error.close();
+        }
+
+        if (ArrayUtils.contains(returnCodes, returnCode)) {
+            return data.getMatched();
+        } else {
+            listener.error("Failed to run " + maskCommand(args));
+            throw new HgCommandException(returnCode, error.getMatched());
+        }
+    }
+
+    public String stream(FilePath repository, TaskListener listener, int timeout, ArgumentListBuilder args)
+            throws IOException, InterruptedException {
+        int[] returnCodes = {0};
+        return stream(repository, listener, timeout, args, returnCodes);
+    }
+
+    /**
+     * Runs the command with the command server when it is enabled,
+     * and falls back to a new hg process when it is not available.
+     * Standard output goes to data, error output to error.
+     * @return int return code of the command
+     */
+    private int run(FilePath repository, TaskListener listener, int timeout, ArgumentListBuilder args,
+                    OutputStream data, OutputStream error)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Integer returnCode = null;
+        String mode = "cmdserver";
+        Span span = timeline.start("hg " + commandName(args), "process", maskCommand(args));
+        Throwable failure = null;
+        try {
+            if (commandServer != null && commandServer.accepts(repository)) {
+                returnCode = commandServer.runCommand(this, listener, args.toCommandArray(), data, error, timeout);
+            }
+            if (returnCode == null) {
+                mode = "popen";
+                returnCode = joinWithPossibleTimeout(
+                        launch(seed(false).add(args.toCommandArray())).pwd(repository).stdout(data).stderr(error),
+                        timeout, listener);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (InterruptedException e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(span, failure);
+        }
+        listener.getLogger().println(
+                "[hg " + mode + "] " + maskCommand(args) + "took " + (System.currentTimeMillis() - start) + " ms");
+        return returnCode;
+    }
+
+    /**
+     * @return String with the hg command of given arguments, skipping global options.
+     */
+    private static String commandName(ArgumentListBuilder args) {
+        List<String> list = args.toList();
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).equals("--config") || list.get(i).equals("-R")) {
+                i++;
+            } else if (!list.get(i).startsWith("-")) {
+                return list.get(i);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * We override this because we don't want sensitive data in error logs.
+     */
+    private static String maskCommand(ArgumentListBuilder args) {
+        String command = "";
+        for (String arg: args.toList()) {
+            if (!arg.contains("auth") || !arg.contains("ssh")) {
+                command += arg;
+            } else {
+                command += "********";
+            }
+            command += " ";
         }
+        return command;
     }
 
     /**
@@ -90,52 +240,62 @@ public class AdvancedHgExe extends HgExe {
         return output;
     }
 
-    public @CheckForNull String branches(String[] extraArgs) throws IOException, InterruptedException {
+    /**
+     * @return JsonStreamReader over the branches, as objects with the branch, rev, node and closed members.
+     */
+    public JsonStreamReader branches(String[] extraArgs) throws IOException, InterruptedException {
         ArgumentListBuilder builder = new ArgumentListBuilder("branches");
         for(String item : extraArgs){
             builder.add(item);
-        }String output = popen(this.filePath, listener, 0, builder);
-        return output;
+        }
+        int[] returnCodes = {0};
+        return popenJson(this.filePath, listener, 0, builder, returnCodes);
     }
 
     public String update(String revision) throws IOException, InterruptedException {
-        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder("update", revision));
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, 0, new ArgumentListBuilder("update", revision));
     }
 
     public String updateClean(String revision) throws IOException, InterruptedException {
-        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder("update", "-C", revision));
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, 0, new ArgumentListBuilder("update", "-C", revision));
     }
 
     public String clean() throws IOException, InterruptedException {
-        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
+        return stream(this.filePath, listener, 0, new ArgumentListBuilder(
                 "--config", "extensions.purge=", "purge", "--all"));
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
     }
 
-    private static final String[] EMPTY = {};
-
+    /**
+     * @return String[] with the nodes of the changesets which are not in the default path, hg returns 1 for none.
+     */
     public String[] out() throws IOException, InterruptedException {
         int [] returnCodes = {0, 1};
-        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder(
-                "out", "-q", "--template", "{rev}:"), returnCodes);
-        if (StringUtils.isEmpty(output)) {
-            return EMPTY;
+        List<String> nodes = readNodes(popenJson(this.filePath, listener, 0, new ArgumentListBuilder(
+                "out", "-q"), returnCodes));
+        return nodes.toArray(new String[nodes.size()]);
+    }
+
+    /**
+     * Read the node members of a JSON array of changesets.
+     */
+    private static List<String> readNodes(JsonStreamReader json) throws IOException {
+        List<String> nodes = new ArrayList<String>();
+        if (!json.beginArray()) {
+            return nodes;
         }
-        return output.split(":");
+        while (json.hasNext()) {
+            json.beginObject();
+            while (json.hasNext()) {
+                if ("node".equals(json.nextName())) {
+                    nodes.add(json.nextString());
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        }
+        json.endArray();
+        return nodes;
     }
 
     public String commit(String message, String username, String... extraArgs) throws IOException, InterruptedException {
@@ -146,23 +306,15 @@ public class AdvancedHgExe extends HgExe {
         for(String item : extraArgs){
             builder.add(item);
         }
-        String output = popen(
+        return stream(
                 this.filePath, listener, 0, builder, returnCodes);
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
     }
 
+    /**
+     * @throws HgCommandException with return code 1 when files were left unresolved, 255 when hg aborted
+     */
     public String merge(String revision) throws IOException, InterruptedException {
-        int [] returnCodes = {0, 255};
-        String output = popen(this.filePath, listener, 0, new ArgumentListBuilder("merge", "--tool", "internal:merge", revision), returnCodes);
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, 0, new ArgumentListBuilder("merge", "--tool", "internal:merge", revision));
     }
 
     public String push(String[] extraArgs) throws IOException, InterruptedException {
@@ -170,12 +322,7 @@ public class AdvancedHgExe extends HgExe {
         for(String item : extraArgs){
             builder.add("-b", item);
         }
-        String output = popen(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, builder);
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, builder);
     }
 
     public String strip(String[] extraArgs) throws IOException, InterruptedException {
@@ -183,48 +330,115 @@ public class AdvancedHgExe extends HgExe {
         for(String item : extraArgs){
             builder.add(item.trim());
         }
-        String output = popen(this.filePath, listener, 0, builder);
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, 0, builder);
     }
 
     public String pullChanges() throws IOException, InterruptedException {  // This has a wheird name because of extended class.
-        String output = popen(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder("pull"));
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder("pull"));
     }
 
     public String pullChanges(String otherRepo) throws IOException, InterruptedException {
-        String output = popen(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder("pull", otherRepo));
-        if (StringUtils.isEmpty(output)) {
-            return "";
-        }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder("pull", otherRepo));
     }
 
     public String pullChanges(String otherRepo, String branch) throws IOException, InterruptedException {
-        String output = popen(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder(
+        return stream(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder(
                 "pull", otherRepo, "-r", branch));
-        if (StringUtils.isEmpty(output)) {
-            return "";
+    }
+
+    /**
+     * @return String with the node of given revision in another repository, without pulling it.
+     */
+    public String identify(String otherRepo, String revision) throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "identify", "--debug", "-i", "-r", revision, otherRepo)).trim();
+    }
+
+    /**
+     * @return String with the url of the default path of the repository.
+     */
+    public String defaultPath() throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder("paths", "default")).trim();
+    }
+
+    /**
+     * Create a mirror of given repository, without working directory.
+     */
+    public String cloneMirror(String url, FilePath mirror) throws IOException, InterruptedException {
+        return stream(mirror.getParent(), listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder(
+                "clone", "-U", url, mirror.getRemote()));
+    }
+
+    /**
+     * Pull all changes into a mirror from given repository.
+     */
+    public String pullMirror(String url, FilePath mirror) throws IOException, InterruptedException {
+        return stream(mirror, listener, DEFAULT_PUSH_TIMEOUT, new ArgumentListBuilder("pull", url));
+    }
+
+    /**
+     * Create a workspace at given path which uses the store of given repository, without updating it.
+     */
+    public String share(FilePath repository, FilePath path) throws IOException, InterruptedException {
+        return stream(path.getParent(), listener, 0, new ArgumentListBuilder(
+                "--config", "extensions.share=", "share", "-U", repository.getRemote(), path.getRemote()));
+    }
+
+    /**
+     * @return JsonStreamReader over the changesets of given revset, as objects with the branch, rev, node
+     * and phase members among others.
+     */
+    public JsonStreamReader log(String revset) throws IOException, InterruptedException {
+        int[] returnCodes = {0};
+        return popenJson(this.filePath, listener, 0, new ArgumentListBuilder("log", "-r", revset), returnCodes);
+    }
+
+    /**
+     * @return List with the nodes of the changesets of given revset, in the order of the revset.
+     */
+    public List<String> logNodes(String revset) throws IOException, InterruptedException {
+        return readNodes(log(revset));
+    }
+
+    /**
+     * @return String with the names of the files changed between given revisions, one per line.
+     */
+    public String changedFiles(String from, String to) throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder(
+                "status", "-n", "--rev", from, "--rev", to));
+    }
+
+    /**
+     * Move the revisions of given revset to given phase, force allows to move them to a more secret phase.
+     */
+    public String phase(String phase, boolean force, String revset) throws IOException, InterruptedException {
+        ArgumentListBuilder builder = new ArgumentListBuilder("phase", "--" + phase);
+        if (force) {
+            builder.add("--force");
         }
-        listener.getLogger().append(output);
-        return output;
+        builder.add("-r", revset);
+        return stream(this.filePath, listener, 0, builder);
     }
 
-    public String add(String filename, String content) throws IOException, InterruptedException {
-        String output = popen(filePath, listener, 0, new ArgumentListBuilder("add", filename));
-        if (StringUtils.isEmpty(output)) {
-            return "";
+    /**
+     * Push given revisions and their ancestors.
+     */
+    public String pushRevisions(String[] revisions) throws IOException, InterruptedException {
+        ArgumentListBuilder builder = new ArgumentListBuilder("push", "--new-branch");
+        for(String item : revisions){
+            builder.add("-r", item);
         }
-        listener.getLogger().append(output);
-        return output;
+        return stream(this.filePath, listener, DEFAULT_PUSH_TIMEOUT, builder);
+    }
+
+    /**
+     * @return String with the files of given revision, with their file revision hashes.
+     */
+    public String manifest(String revision) throws IOException, InterruptedException {
+        return popen(this.filePath, listener, 0, new ArgumentListBuilder("manifest", "--debug", "-r", revision));
+    }
+
+    public String add(String filename, String content) throws IOException, InterruptedException {
+        return stream(filePath, listener, 0, new ArgumentListBuilder("add", filename));
     }
 }
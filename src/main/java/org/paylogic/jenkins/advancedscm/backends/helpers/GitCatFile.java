@@ -0,0 +1,196 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import lombok.extern.java.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+
+/**
+ * Persistent 'git cat-file --batch-check' process for one work tree during one build.
+ * Object queries, like which commit a ref peels to or what the tree of a commit is, are written to it
+ * all at once and answered in order, so a batch of queries costs one round trip instead of one process each.
+ */
+@Log
+public class GitCatFile {
+
+    /**
+     * Build environment variable which enables the cat-file session, set it to "true".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_GIT_CATFILE";
+
+    /**
+     * Time to wait for the answers of one batch of queries (time is in milliseconds).
+     */
+    public static final long TIMEOUT = 60 * 1000;
+
+    private static final Map<String, GitCatFile> SESSIONS = new HashMap<String, GitCatFile>();
+    private static final Timer WATCHDOG = new Timer("Gatekeeper git cat-file watchdog", true);
+
+    private final String buildId;
+    private final File workTree;
+    private Proc proc;
+    private InputStream input;
+    private OutputStream output;
+    private volatile boolean failed;
+
+    private GitCatFile(String buildId, File workTree) {
+        this.buildId = buildId;
+        this.workTree = workTree;
+    }
+
+    public static boolean isEnabled(EnvVars environment) {
+        return Boolean.parseBoolean(environment.get(ENABLE_VARIABLE, "false"));
+    }
+
+    /**
+     * Get the session of given build and work tree, the process is started on first use.
+     */
+    public static GitCatFile forWorkTree(AbstractBuild build, File workTree) {
+        String key = build.getExternalizableId() + "@" + workTree.getPath();
+        synchronized (SESSIONS) {
+            GitCatFile session = SESSIONS.get(key);
+            if (session == null) {
+                session = new GitCatFile(build.getExternalizableId(), workTree);
+                SESSIONS.put(key, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Look up given objects, in any notation 'git cat-file' accepts, like "origin/master^{commit}".
+     * @param launcher : launcher of the node of the work tree, to start the process
+     * @param gitExe : git executable
+     * @param environment : environment of the process
+     * @param listener : listener of the build, receives the error output of the process
+     * @return Lines of "object-id type size", or "name missing" for names which do not exist,
+     * in the order of the objects. null when the session is not available and nothing was looked up.
+     */
+    public synchronized String[] query(Launcher launcher, String gitExe, EnvVars environment,
+                                       TaskListener listener, String... objects) {
+        if (failed) {
+            return null;
+        }
+        StringBuilder request = new StringBuilder();
+        for (String object: objects) {
+            if (object.indexOf('\n') >= 0) {
+                return null;
+            }
+            request.append(object).append('\n');
+        }
+        try {
+            if (proc == null) {
+                proc = launcher.launch().cmds(gitExe, "cat-file", "--batch-check").envs(environment)
+                        .pwd(workTree).readStdout().writeStdin().stderr(listener.getLogger()).start();
+                input = proc.getStdout();
+                output = proc.getStdin();
+            }
+            output.write(request.toString().getBytes("UTF-8"));
+            output.flush();
+        } catch (IOException e) {
+            // Nothing was answered yet, so the queries can be done without the session.
+            log.log(Level.WARNING, "git cat-file session is not available.", e);
+            listener.getLogger().println("git cat-file session is not available: " + e);
+            close();
+            return null;
+        }
+
+        TimerTask killer = new TimerTask() {
+            @Override
+            public void run() {
+                close();
+            }
+        };
+        WATCHDOG.schedule(killer, TIMEOUT);
+        try {
+            String[] answers = new String[objects.length];
+            for (int i = 0; i < objects.length; i++) {
+                answers[i] = readLine();
+            }
+            return answers;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "git cat-file session failed.", e);
+            close();
+            return null;
+        } finally {
+            killer.cancel();
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Stop the process. Later queries are not answered by the session.
+     */
+    public void close() {
+        failed = true;
+        Proc p = proc;
+        if (p == null) {
+            return;
+        }
+        try {
+            // The process exits when its input is closed.
+            p.getStdin().close();
+        } catch (IOException e) {
+            // already gone
+        }
+        try {
+            p.kill();
+        } catch (Exception e) {
+            log.log(Level.FINE, "Failed to stop git cat-file session.", e);
+        }
+    }
+
+    /**
+     * Stops the sessions of a build when it completes.
+     */
+    @Extension
+    public static class BuildCleanup extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            List<GitCatFile> sessions = new ArrayList<GitCatFile>();
+            synchronized (SESSIONS) {
+                Iterator<GitCatFile> it = SESSIONS.values().iterator();
+                while (it.hasNext()) {
+                    GitCatFile session = it.next();
+                    if (session.buildId.equals(build.getExternalizableId())) {
+                        sessions.add(session);
+                        it.remove();
+                    }
+                }
+            }
+            for (GitCatFile session: sessions) {
+                session.close();
+            }
+        }
+    }
+}
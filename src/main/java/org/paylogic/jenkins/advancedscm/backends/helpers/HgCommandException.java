@@ -0,0 +1,27 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.AbortException;
+import lombok.Getter;
+
+/**
+ * Mercurial command which exited with a return code the caller does not accept.
+ * Mercurial returns 1 when there was nothing to do or files are unresolved, and 255 when it aborted,
+ * with the reason on its error output.
+ */
+public class HgCommandException extends AbortException {
+
+    @Getter
+    private final int returnCode;
+
+    /**
+     * Error output of the command.
+     */
+    @Getter
+    private final String error;
+
+    public HgCommandException(int returnCode, String error) {
+        super(error.isEmpty() ? "hg returned " + returnCode : error);
+        this.returnCode = returnCode;
+        this.error = error;
+    }
+}
@@ -0,0 +1,265 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.ArgumentListBuilder;
+import lombok.extern.java.Log;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+
+/**
+ * Persistent Mercurial command server ("hg serve --cmdserver pipe") for one workspace during one build.
+ * Commands are sent over the binary channel protocol, so the hg interpreter and the repository
+ * are only loaded once instead of once per command.
+ * See https://www.mercurial-scm.org/wiki/CommandServer for the protocol.
+ */
+@Log
+public class HgCommandServer {
+
+    /**
+     * Build environment variable which enables the command server, set it to "true".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_HG_CMDSERVER";
+
+    private static final Map<String, HgCommandServer> SERVERS = new HashMap<String, HgCommandServer>();
+    private static final Timer WATCHDOG = new Timer("Gatekeeper hg command server watchdog", true);
+
+    private final String buildId;
+    private final FilePath repository;
+    private Proc proc;
+    private DataInputStream input;
+    private OutputStream output;
+    private String encoding = "UTF-8";
+    private volatile boolean failed;
+
+    private HgCommandServer(String buildId, FilePath repository) {
+        this.buildId = buildId;
+        this.repository = repository;
+    }
+
+    public static boolean isEnabled(EnvVars environment) {
+        return Boolean.parseBoolean(environment.get(ENABLE_VARIABLE, "false"));
+    }
+
+    /**
+     * Get the command server of given build and workspace, the server process is started on first use.
+     */
+    public static HgCommandServer forWorkspace(AbstractBuild build, FilePath repository) {
+        String key = build.getExternalizableId() + "@" + repository.getRemote();
+        synchronized (SERVERS) {
+            HgCommandServer server = SERVERS.get(key);
+            if (server == null) {
+                server = new HgCommandServer(build.getExternalizableId(), repository);
+                SERVERS.put(key, server);
+            }
+            return server;
+        }
+    }
+
+    /**
+     * Whether commands for given repository can be sent to this server.
+     */
+    public boolean accepts(FilePath repository) {
+        return !failed && this.repository.getRemote().equals(repository.getRemote());
+    }
+
+    /**
+     * Run a command on the server.
+     * @param hg : AdvancedHgExe used to start the server process
+     * @param listener : listener of the build, receives the server's own error output
+     * @param args : command arguments, without the hg executable
+     * @param data : stream receiving the output channel
+     * @param error : stream receiving the error channel
+     * @param timeout : timeout in seconds, 0 for the default timeout
+     * @return return code of the command, or null when the server is not available and the command was not sent
+     */
+    public synchronized Integer runCommand(
+            AdvancedHgExe hg, TaskListener listener, String[] args, OutputStream data, OutputStream error,
+            int timeout)
+            throws IOException, InterruptedException {
+        if (failed) {
+            return null;
+        }
+        if (proc == null) {
+            try {
+                start(hg, listener);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not start Mercurial command server, falling back to popen.", e);
+                listener.getLogger().println("Could not start Mercurial command server: " + e);
+                close();
+                return null;
+            }
+        }
+
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                joined.append('\0');
+            }
+            joined.append(args[i]);
+        }
+        byte[] payload = joined.toString().getBytes(encoding);
+        try {
+            output.write("runcommand\n".getBytes("US-ASCII"));
+            writeInt(payload.length);
+            output.write(payload);
+            output.flush();
+        } catch (IOException e) {
+            // The server died before it received the command, so it is safe to run it with popen instead.
+            log.log(Level.WARNING, "Mercurial command server is gone, falling back to popen.", e);
+            close();
+            return null;
+        }
+
+        TimerTask killer = new TimerTask() {
+            @Override
+            public void run() {
+                close();
+            }
+        };
+        WATCHDOG.schedule(killer, 1000L * (timeout != 0 ? timeout : AdvancedHgExe.DEFAULT_TIMEOUT));
+        try {
+            return readResult(data, error);
+        } catch (IOException e) {
+            close();
+            throw new IOException("Mercurial command server failed while running command: " + e);
+        } finally {
+            killer.cancel();
+        }
+    }
+
+    private void start(AdvancedHgExe hg, TaskListener listener) throws IOException, InterruptedException {
+        ArgumentListBuilder args = hg.seed(false).add("serve", "--cmdserver", "pipe");
+        proc = hg.launch(args).pwd(repository).readStdout().writeStdin()
+                .stderr(listener.getLogger()).start();
+        input = new DataInputStream(proc.getStdout());
+        output = proc.getStdin();
+
+        // The hello message is sent on the output channel, one "key: value" per line.
+        int channel = input.readUnsignedByte();
+        byte[] hello = new byte[input.readInt()];
+        input.readFully(hello);
+        if (channel != 'o') {
+            throw new IOException("Unexpected hello channel " + (char) channel);
+        }
+        boolean runcommand = false;
+        for (String line: new String(hello, "US-ASCII").split("\n")) {
+            if (line.startsWith("capabilities:")) {
+                runcommand = line.contains(" runcommand");
+            } else if (line.startsWith("encoding:")) {
+                encoding = line.substring("encoding:".length()).trim();
+            }
+        }
+        if (!runcommand) {
+            throw new IOException("Mercurial command server does not support runcommand");
+        }
+    }
+
+    private int readResult(OutputStream data, OutputStream error) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (true) {
+            int channel = input.readUnsignedByte();
+            int length = input.readInt();
+            switch (channel) {
+                case 'o':
+                case 'e':
+                case 'd':
+                    while (length > 0) {
+                        int read = input.read(buffer, 0, Math.min(buffer.length, length));
+                        if (read < 0) {
+                            throw new EOFException();
+                        }
+                        if (channel == 'o') {
+                            data.write(buffer, 0, read);
+                        } else if (channel == 'e') {
+                            error.write(buffer, 0, read);
+                        }
+                        length -= read;
+                    }
+                    break;
+                case 'r':
+                    return input.readInt();
+                case 'I':
+                case 'L':
+                    // We never run interactive commands, so answering with no input makes hg abort.
+                    writeInt(0);
+                    output.flush();
+                    break;
+                default:
+                    if (Character.isUpperCase(channel)) {
+                        throw new IOException("Unsupported required channel " + (char) channel);
+                    }
+                    input.skipBytes(length);
+            }
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        output.write((value >>> 24) & 0xFF);
+        output.write((value >>> 16) & 0xFF);
+        output.write((value >>> 8) & 0xFF);
+        output.write(value & 0xFF);
+    }
+
+    /**
+     * Stop the server process. Later commands fall back to popen.
+     */
+    public void close() {
+        failed = true;
+        Proc p = proc;
+        if (p == null) {
+            return;
+        }
+        try {
+            // The server exits when its input is closed.
+            p.getStdin().close();
+        } catch (IOException e) {
+            // already gone
+        }
+        try {
+            p.kill();
+        } catch (Exception e) {
+            log.log(Level.FINE, "Failed to stop Mercurial command server.", e);
+        }
+    }
+
+    /**
+     * Stops the command servers of a build when it completes.
+     */
+    @Extension
+    public static class BuildCleanup extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            List<HgCommandServer> servers = new ArrayList<HgCommandServer>();
+            synchronized (SERVERS) {
+                Iterator<HgCommandServer> it = SERVERS.values().iterator();
+                while (it.hasNext()) {
+                    HgCommandServer server = it.next();
+                    if (server.buildId.equals(build.getExternalizableId())) {
+                        servers.add(server);
+                        it.remove();
+                    }
+                }
+            }
+            for (HgCommandServer server: servers) {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+import hudson.plugins.mercurial.MercurialSCM;
+import hudson.scm.SCM;
+import lombok.extern.java.Log;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+/**
+ * Node-level Mercurial repository per remote, whose store is used by the workspaces of all builds on the node.
+ * A new workspace is made with 'hg share' of it before the SCM checkout, so it is ready without a clone,
+ * and pulls and pushes of every workspace go through the one store. Mercurial's store lock serializes them.
+ * Commits of a build are secret until the build pushes them, so other builds sharing the store ignore them,
+ * see MercurialBackend. The pool is only created and updated under the lock of its MirrorCache,
+ * and is never evicted, because the workspaces use its store.
+ */
+@Log
+public class HgSharedStore {
+
+    /**
+     * Build environment variable which enables shared workspaces, set it to "true".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_HG_SHARE";
+
+    private static final String SHARED_PATH_FILE = ".hg/sharedpath";
+
+    /**
+     * Get the cache of shared repositories of the node the build runs on.
+     * @return MirrorCache, or null when sharing is not enabled or the node is not available.
+     */
+    public static MirrorCache forBuild(AbstractBuild build, TaskListener listener, EnvVars environment) {
+        if (!Boolean.parseBoolean(environment.get(ENABLE_VARIABLE, "false"))) {
+            return null;
+        }
+        Node node = build.getBuiltOn();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null) {
+            return null;
+        }
+        // Workspaces use the stores, so they must never be evicted.
+        return new MirrorCache(nodeRoot.child("gatekeeper-hg-shares"), listener, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the repository the store of given workspace is shared with.
+     * @return String with the path of the shared repository, null when the workspace has its own store.
+     */
+    public static String getSharedPath(FilePath repository) throws IOException, InterruptedException {
+        FilePath file = repository.child(SHARED_PATH_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        return file.readToString().trim();
+    }
+
+    /**
+     * Make the workspace of given build a share of the pooled repository of its remote,
+     * unless it already holds a repository or other files.
+     */
+    public static void prepare(AbstractBuild build, BuildListener listener, MercurialSCM scm, EnvVars environment)
+            throws Exception {
+        MirrorCache cache = forBuild(build, listener, environment);
+        if (cache == null || scm.getSource() == null) {
+            return;
+        }
+        final AdvancedHgExe hg = new AdvancedHgExe(
+                scm, build.getBuiltOn().createLauncher(listener), build, listener, environment);
+        FilePath path = hg.getFilePath();
+        if (path.child(".hg").exists()) {
+            return;
+        }
+        if (path.exists() && !path.list().isEmpty()) {
+            listener.getLogger().println(
+                    "Workspace " + path.getRemote() + " is not empty, not sharing the Mercurial store of the node.");
+            return;
+        }
+        String url = environment.expand(scm.getSource());
+        long start = System.currentTimeMillis();
+        FilePath pool = cache.update(url, new MirrorCache.Updater() {
+            public void create(String url, FilePath pool) throws Exception {
+                hg.cloneMirror(url, pool);
+            }
+
+            public void update(String url, FilePath pool) throws Exception {
+                hg.pullMirror(url, pool);
+            }
+        });
+        try {
+            path.getParent().mkdirs();
+            hg.share(pool, path);
+            // Pull from and push to the remote itself, and let the SCM recognize its repository.
+            path.child(".hg/hgrc").write("[paths]\ndefault = " + url + "\n", "UTF-8");
+        } catch (Exception e) {
+            // Leave an empty workspace, for a full clone.
+            path.deleteContents();
+            throw e;
+        }
+        listener.getLogger().println("Created workspace sharing the Mercurial store of " + url + " in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Prepares workspaces of Mercurial projects before the checkout.
+     */
+    @Extension
+    public static class WorkspacePreparer extends WorkspaceListener {
+        @Override
+        public void beforeUse(AbstractBuild build, FilePath workspace, BuildListener listener) {
+            SCM scm = build.getProject().getScm();
+            if (!(scm instanceof MercurialSCM)) {
+                return;
+            }
+            try {
+                prepare(build, listener, (MercurialSCM) scm, build.getEnvironment(listener));
+            } catch (Exception e) {
+                // The checkout makes a full clone instead.
+                log.log(Level.WARNING, "Failed to prepare shared Mercurial workspace for " + build, e);
+                listener.getLogger().println("Failed to share the Mercurial store of the node: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import lombok.extern.java.Log;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Runs JGit operations inside the JVM of the node which holds the workspace.
+ * The Repository is opened once per workspace and kept open until the build completes,
+ * so consecutive operations do not have to read the repository again.
+ */
+@Log
+public class JGitWorkspace {
+
+    /**
+     * Repositories opened in this JVM, by absolute work tree path. Only used on the node side.
+     */
+    private static final Map<String, Repository> OPEN = new HashMap<String, Repository>();
+
+    private static final Map<String, JGitWorkspace> WORKSPACES = new HashMap<String, JGitWorkspace>();
+
+    private final String buildId;
+    private final FilePath workTree;
+
+    private JGitWorkspace(String buildId, FilePath workTree) {
+        this.buildId = buildId;
+        this.workTree = workTree;
+    }
+
+    /**
+     * Get the JGit workspace of given build and work tree.
+     */
+    public static JGitWorkspace forWorkspace(AbstractBuild build, FilePath workTree) {
+        String key = build.getExternalizableId() + "@" + workTree.getRemote();
+        synchronized (WORKSPACES) {
+            JGitWorkspace workspace = WORKSPACES.get(key);
+            if (workspace == null) {
+                workspace = new JGitWorkspace(build.getExternalizableId(), workTree);
+                WORKSPACES.put(key, workspace);
+            }
+            return workspace;
+        }
+    }
+
+    public FilePath getWorkTree() {
+        return workTree;
+    }
+
+    /**
+     * Run given operation on the node of the workspace.
+     * Exceptions thrown by the operation are available as cause of the IOException.
+     */
+    public <T> T act(Operation<T> operation) throws IOException, InterruptedException {
+        return workTree.act(new Invoker<T>(operation));
+    }
+
+    /**
+     * Close the repository on the node of the workspace.
+     */
+    public void close() throws IOException, InterruptedException {
+        workTree.act(new Release());
+    }
+
+    /**
+     * Operation on a repository. Implementations are sent to the node, so they can only hold serializable state.
+     */
+    public static abstract class Operation<T> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public abstract T run(Git git) throws Exception;
+    }
+
+    private static Repository open(File workTree) throws IOException {
+        String key = workTree.getAbsolutePath();
+        synchronized (OPEN) {
+            Repository repository = OPEN.get(key);
+            if (repository == null) {
+                repository = new FileRepositoryBuilder()
+                        .setWorkTree(workTree)
+                        .setGitDir(new File(workTree, ".git"))
+                        .build();
+                OPEN.put(key, repository);
+            }
+            return repository;
+        }
+    }
+
+    private static final class Invoker<T> extends MasterToSlaveFileCallable<T> {
+        private static final long serialVersionUID = 1L;
+        private final Operation<T> operation;
+
+        Invoker(Operation<T> operation) {
+            this.operation = operation;
+        }
+
+        public T invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            Repository repository = open(f);
+            // Operations on one repository are not run concurrently.
+            synchronized (repository) {
+                try {
+                    return operation.run(new Git(repository));
+                } catch (IOException e) {
+                    throw e;
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    IOException exception = new IOException(e.getMessage());
+                    exception.initCause(e);
+                    throw exception;
+                }
+            }
+        }
+    }
+
+    private static final class Release extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        public Void invoke(File f, VirtualChannel channel) {
+            Repository repository;
+            synchronized (OPEN) {
+                repository = OPEN.remove(f.getAbsolutePath());
+            }
+            if (repository != null) {
+                repository.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Closes the repositories of a build when it completes.
+     */
+    @Extension
+    public static class BuildCleanup extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            List<JGitWorkspace> workspaces = new ArrayList<JGitWorkspace>();
+            synchronized (WORKSPACES) {
+                Iterator<JGitWorkspace> it = WORKSPACES.values().iterator();
+                while (it.hasNext()) {
+                    JGitWorkspace workspace = it.next();
+                    if (workspace.buildId.equals(build.getExternalizableId())) {
+                        workspaces.add(workspace);
+                        it.remove();
+                    }
+                }
+            }
+            for (JGitWorkspace workspace: workspaces) {
+                try {
+                    workspace.close();
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Failed to close repository in " + workspace.getWorkTree(), e);
+                }
+            }
+        }
+    }
+}
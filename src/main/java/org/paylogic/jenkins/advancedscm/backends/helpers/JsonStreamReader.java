@@ -0,0 +1,213 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Small pull parser for JSON command output, like that of 'hg -Tjson'.
+ * Values are read one by one as the caller asks for them, so a list of records is turned into objects
+ * without building a document of the whole output first.
+ */
+public class JsonStreamReader {
+
+    private final Reader in;
+
+    /**
+     * Next character, read ahead by peek. -2 when nothing is read ahead.
+     */
+    private int peeked = -2;
+
+    public JsonStreamReader(Reader in) {
+        this.in = in instanceof BufferedReader ? in : new BufferedReader(in);
+    }
+
+    /**
+     * Start reading an array.
+     * @return false when there is no input at all, like for commands which found nothing to list.
+     */
+    public boolean beginArray() throws IOException {
+        if (peek() < 0) {
+            return false;
+        }
+        expect('[');
+        return true;
+    }
+
+    public void endArray() throws IOException {
+        expect(']');
+    }
+
+    public void beginObject() throws IOException {
+        expect('{');
+    }
+
+    public void endObject() throws IOException {
+        expect('}');
+    }
+
+    /**
+     * @return true when another element of the current array or member of the current object follows.
+     */
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == ',') {
+            read();
+            c = peek();
+        }
+        return c != ']' && c != '}' && c >= 0;
+    }
+
+    /**
+     * @return String with the name of the next member of the current object.
+     */
+    public String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append((char) c);
+                continue;
+            }
+            c = in.read();
+            switch (c) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < hex.length; i++) {
+                        hex[i] = (char) in.read();
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(new String(hex), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid JSON escape \\u" + new String(hex));
+                    }
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    value.append((char) c);
+                    break;
+                default:
+                    throw new IOException("Invalid JSON escape \\" + (char) c);
+            }
+        }
+    }
+
+    public long nextLong() throws IOException {
+        String number = nextLiteral();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw new IOException("Expected JSON integer, got " + number);
+        }
+    }
+
+    public boolean nextBoolean() throws IOException {
+        String literal = nextLiteral();
+        if ("true".equals(literal)) {
+            return true;
+        } else if ("false".equals(literal)) {
+            return false;
+        }
+        throw new IOException("Expected JSON boolean, got " + literal);
+    }
+
+    /**
+     * Skip the next value, with everything nested in it.
+     */
+    public void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            nextString();
+        } else if (c == '[') {
+            read();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else if (c == '{') {
+            read();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else {
+            nextLiteral();
+        }
+    }
+
+    /**
+     * @return String with the next number, true, false or null.
+     */
+    private String nextLiteral() throws IOException {
+        peek();
+        StringBuilder literal = new StringBuilder();
+        while (peeked >= 0 && peeked != ',' && peeked != ']' && peeked != '}' && !Character.isWhitespace(peeked)) {
+            literal.append((char) peeked);
+            peeked = in.read();
+        }
+        if (literal.length() == 0) {
+            throw new IOException("Expected JSON value, got " + describe(peeked));
+        }
+        return literal.toString();
+    }
+
+    /**
+     * @return int with the next character which is not whitespace, without consuming it. -1 at the end.
+     */
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = in.read();
+        }
+        while (peeked >= 0 && Character.isWhitespace(peeked)) {
+            peeked = in.read();
+        }
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        peeked = -2;
+        return c;
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = read();
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' in JSON, got " + describe(c));
+        }
+    }
+
+    private static String describe(int c) {
+        return c < 0 ? "end of input" : "'" + (char) c + "'";
+    }
+}
@@ -0,0 +1,372 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+
+/**
+ * Node-level cache of mirrors of remote repositories, keyed by repository URL.
+ * Builds fetch from the local mirror, and the mirror is updated from upstream once per fetch.
+ * A lock file per mirror serializes concurrent builds, and least recently used mirrors are removed
+ * when the cache grows over its disk quota.
+ */
+@Log
+public class MirrorCache {
+
+    /**
+     * Build environment variable which enables the mirror cache, set it to "true".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_MIRROR_CACHE";
+
+    /**
+     * Build environment variable with the disk quota of the cache in megabytes.
+     */
+    public static final String QUOTA_VARIABLE = "GATEKEEPER_MIRROR_QUOTA_MB";
+
+    public static final long DEFAULT_QUOTA_MB = 10 * 1024;
+
+    /**
+     * Locks older than this are considered left behind by a crashed build (time is in milliseconds).
+     */
+    public static final long STALE_LOCK_TIMEOUT = 2 * 60 * 60 * 1000;
+
+    /**
+     * Interval to touch the lock of a mirror while it is created or updated, so a long clone does not
+     * look like a crashed build (time is in milliseconds).
+     */
+    public static final long LOCK_REFRESH_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Interval to measure the disk usage of a mirror again after updates (time is in milliseconds).
+     * A mirror is measured when it is created, and otherwise only when eviction looks at it.
+     */
+    public static final long SIZE_REFRESH_INTERVAL = 60 * 60 * 1000;
+
+    private static final Timer LOCK_REFRESHER = new Timer("Gatekeeper mirror lock refresher", true);
+
+    public static final String INFO_FILE = ".gatekeeper-mirror";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    private final FilePath root;
+    private final TaskListener listener;
+    private final long quota;
+
+    /**
+     * Creates and updates a mirror, implemented by the SCM backends.
+     */
+    public interface Updater {
+        /**
+         * Create the mirror from scratch, the directory does not exist yet.
+         */
+        void create(String url, FilePath mirror) throws Exception;
+
+        /**
+         * Fetch new changes from upstream into an existing mirror.
+         */
+        void update(String url, FilePath mirror) throws Exception;
+    }
+
+    public MirrorCache(FilePath root, TaskListener listener, long quota) {
+        this.root = root;
+        this.listener = listener;
+        this.quota = quota;
+    }
+
+    /**
+     * Get the mirror cache of the node the build runs on.
+     * @return MirrorCache, or null when the cache is not enabled or the node is not available.
+     */
+    public static MirrorCache forBuild(AbstractBuild build, TaskListener listener, EnvVars environment) {
+        if (!Boolean.parseBoolean(environment.get(ENABLE_VARIABLE, "false"))) {
+            return null;
+        }
+        Node node = build.getBuiltOn();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null) {
+            return null;
+        }
+        long quotaMb = DEFAULT_QUOTA_MB;
+        try {
+            quotaMb = Long.parseLong(environment.get(QUOTA_VARIABLE, String.valueOf(DEFAULT_QUOTA_MB)));
+        } catch (NumberFormatException e) {
+            listener.getLogger().println("Invalid " + QUOTA_VARIABLE + ", using " + DEFAULT_QUOTA_MB + " MB.");
+        }
+        return new MirrorCache(nodeRoot.child("gatekeeper-mirrors"), listener, quotaMb * 1024 * 1024);
+    }
+
+    /**
+     * Get the directory of the mirror of given repository.
+     */
+    public FilePath getMirror(String url) {
+        return root.child(Util.getDigestOf(url));
+    }
+
+    /**
+     * Bring the mirror of given repository up to date, creating it when needed.
+     * @return FilePath of the mirror, to fetch from.
+     */
+    public FilePath update(String url, Updater updater) throws Exception {
+        root.mkdirs();
+        FilePath mirror = getMirror(url);
+        FilePath lock = root.child(mirror.getName() + LOCK_SUFFIX);
+        acquire(lock);
+        LockRefresher refresher = new LockRefresher(lock);
+        LOCK_REFRESHER.schedule(refresher, LOCK_REFRESH_INTERVAL, LOCK_REFRESH_INTERVAL);
+        long start = System.currentTimeMillis();
+        boolean created = false;
+        try {
+            if (mirror.exists() && !mirror.child(INFO_FILE).exists()) {
+                // Left behind by a failed clone.
+                mirror.deleteRecursive();
+            }
+            if (mirror.exists()) {
+                updater.update(url, mirror);
+            } else {
+                try {
+                    updater.create(url, mirror);
+                } catch (Exception e) {
+                    mirror.deleteRecursive();
+                    throw e;
+                }
+                created = true;
+            }
+            mirror.act(new WriteInfo(url, created));
+        } finally {
+            refresher.stop();
+            lock.delete();
+        }
+        listener.getLogger().println(
+                "Updated mirror of " + url + " in " + (System.currentTimeMillis() - start) + " ms.");
+        evict(mirror);
+        return mirror;
+    }
+
+    private void acquire(FilePath lock) throws IOException, InterruptedException {
+        boolean waiting = false;
+        while (!lock.act(new TryLock())) {
+            if (!waiting) {
+                listener.getLogger().println("Waiting for another build to release " + lock.getRemote());
+                waiting = true;
+            }
+            Thread.sleep(1000);
+        }
+    }
+
+    /**
+     * Remove least recently used mirrors until the cache fits in the quota again.
+     * The recorded sizes are used, a mirror is only measured again when its size was recorded long ago.
+     */
+    private void evict(FilePath keep) throws IOException, InterruptedException {
+        if (quota == Long.MAX_VALUE) {
+            // Never evicted, like the shared object stores, so there is nothing to measure.
+            return;
+        }
+        List<Properties> mirrors = new ArrayList<Properties>();
+        long total = 0;
+        for (FilePath child: root.listDirectories()) {
+            Properties info = child.act(new ReadInfo(SIZE_REFRESH_INTERVAL));
+            if (info != null) {
+                info.setProperty("path", child.getName());
+                mirrors.add(info);
+                total += Long.parseLong(info.getProperty("size", "0"));
+            }
+        }
+        if (total <= quota) {
+            return;
+        }
+        Collections.sort(mirrors, new Comparator<Properties>() {
+            public int compare(Properties a, Properties b) {
+                Long usedA = Long.parseLong(a.getProperty("lastUsed", "0"));
+                Long usedB = Long.parseLong(b.getProperty("lastUsed", "0"));
+                return usedA.compareTo(usedB);
+            }
+        });
+        for (Properties info: mirrors) {
+            if (total <= quota) {
+                break;
+            }
+            FilePath mirror = root.child(info.getProperty("path"));
+            if (mirror.getName().equals(keep.getName())) {
+                continue;
+            }
+            FilePath lock = root.child(mirror.getName() + LOCK_SUFFIX);
+            if (!lock.act(new TryLock())) {
+                // In use by another build.
+                continue;
+            }
+            try {
+                listener.getLogger().println("Evicting mirror of " + info.getProperty("url") + " from the cache.");
+                mirror.deleteRecursive();
+                total -= Long.parseLong(info.getProperty("size", "0"));
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to evict mirror " + mirror.getRemote(), e);
+            } finally {
+                lock.delete();
+            }
+        }
+    }
+
+    /**
+     * Touches a lock file until it is stopped. Stopping waits for a running touch, so the lock file
+     * is not created again after it is deleted.
+     */
+    private static final class LockRefresher extends TimerTask {
+        private final FilePath lock;
+        private boolean stopped;
+
+        LockRefresher(FilePath lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (stopped) {
+                return;
+            }
+            try {
+                lock.touch(System.currentTimeMillis());
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Failed to refresh mirror lock " + lock.getRemote(), e);
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            cancel();
+        }
+    }
+
+    /**
+     * Atomically creates the lock file, breaking locks of crashed builds.
+     */
+    private static final class TryLock extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        public Boolean invoke(File f, VirtualChannel channel) throws IOException {
+            if (f.createNewFile()) {
+                return true;
+            }
+            if (f.lastModified() < System.currentTimeMillis() - STALE_LOCK_TIMEOUT && f.delete()) {
+                return f.createNewFile();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records url and time of last use of a mirror, and its disk usage when it was just created.
+     * After updates the recorded disk usage is kept, it is measured again by eviction.
+     */
+    private static final class WriteInfo extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String url;
+        private final boolean measure;
+
+        WriteInfo(String url, boolean measure) {
+            this.url = url;
+            this.measure = measure;
+        }
+
+        public Void invoke(File f, VirtualChannel channel) throws IOException {
+            Properties info = load(f);
+            if (info == null) {
+                info = new Properties();
+            }
+            info.setProperty("url", url);
+            if (measure || info.getProperty("size") == null) {
+                measure(f, info);
+            }
+            info.setProperty("lastUsed", String.valueOf(System.currentTimeMillis()));
+            store(f, info);
+            return null;
+        }
+    }
+
+    private static Properties load(File f) throws IOException {
+        File file = new File(f, INFO_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            info.load(in);
+        } finally {
+            in.close();
+        }
+        return info;
+    }
+
+    private static void store(File f, Properties info) throws IOException {
+        OutputStream out = new FileOutputStream(new File(f, INFO_FILE));
+        try {
+            info.store(out, "Gatekeeper mirror");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void measure(File f, Properties info) {
+        info.setProperty("size", String.valueOf(diskUsage(f)));
+        info.setProperty("measured", String.valueOf(System.currentTimeMillis()));
+    }
+
+    private static long diskUsage(File f) {
+        File[] children = f.listFiles();
+        if (children == null) {
+            return f.length();
+        }
+        long size = 0;
+        for (File child: children) {
+            size += diskUsage(child);
+        }
+        return size;
+    }
+
+    /**
+     * Reads the info of a mirror, and measures its disk usage again when that was recorded longer than
+     * given interval ago.
+     */
+    private static final class ReadInfo extends MasterToSlaveFileCallable<Properties> {
+        private static final long serialVersionUID = 1L;
+        private final long maxAge;
+
+        ReadInfo(long maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public Properties invoke(File f, VirtualChannel channel) throws IOException {
+            Properties info = load(f);
+            if (info == null) {
+                return null;
+            }
+            long measured = Long.parseLong(info.getProperty("measured", "0"));
+            if (measured < System.currentTimeMillis() - maxAge) {
+                measure(f, info);
+                store(f, info);
+            }
+            return info;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+
+/**
+ * Output stream which forwards command output line by line to a log, and only keeps the lines
+ * that contain one of the given markers. Memory use is bounded no matter how much output passes through:
+ * when the kept lines grow too long, the oldest ones are dropped, since the reason of a failure comes last.
+ */
+public class ScanningOutputStream extends OutputStream {
+
+    /**
+     * Longest line that is kept in memory, longer lines are forwarded and scanned in pieces.
+     */
+    public static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * Maximum number of characters of matched lines that are kept.
+     */
+    public static final int MAX_MATCHED_LENGTH = 64 * 1024;
+
+    /**
+     * Marker contained in every line, to keep the last MAX_MATCHED_LENGTH of all lines, like for error output.
+     */
+    public static final String ALL_LINES = "";
+
+    private final PrintStream log;
+    private final String[] markers;
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private final LinkedList<String> matched = new LinkedList<String>();
+    private int matchedLength;
+    private boolean truncated;
+
+    public ScanningOutputStream(PrintStream log, String... markers) {
+        this.log = log;
+        this.markers = markers;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        line[lineLength++] = (byte) b;
+        if (b == '\n' || lineLength == line.length) {
+            endLine();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        log.flush();
+    }
+
+    /**
+     * Forwards the last incomplete line.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lineLength > 0) {
+            endLine();
+        }
+        flush();
+    }
+
+    private void endLine() throws UnsupportedEncodingException {
+        log.write(line, 0, lineLength);
+        String text = new String(line, 0, lineLength, "UTF-8");
+        lineLength = 0;
+        for (String marker: markers) {
+            if (text.contains(marker)) {
+                keep(text);
+                return;
+            }
+        }
+    }
+
+    private void keep(String text) {
+        if (!text.endsWith("\n")) {
+            text += "\n";
+        }
+        matched.addLast(text);
+        matchedLength += text.length();
+        while (matchedLength > MAX_MATCHED_LENGTH) {
+            matchedLength -= matched.removeFirst().length();
+            truncated = true;
+        }
+    }
+
+    /**
+     * @return String with the last lines which contained a marker.
+     */
+    public String getMatched() {
+        StringBuilder result = new StringBuilder(matchedLength + 40);
+        if (truncated) {
+            result.append("(earlier matching lines were left out)\n");
+        }
+        for (String text: matched) {
+            result.append(text);
+        }
+        return result.toString();
+    }
+}
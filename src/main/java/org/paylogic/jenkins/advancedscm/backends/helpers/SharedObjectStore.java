@@ -0,0 +1,130 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.WorkspaceListener;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import hudson.scm.SCM;
+import lombok.extern.java.Log;
+import org.jenkinsci.plugins.gitclient.CliGitAPIImpl;
+import org.paylogic.jenkins.advancedscm.backends.GitBackend;
+
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Node-level Git repository per remote, whose objects are shared by the workspaces of all builds on the node.
+ * A new workspace is a 'git clone --shared' of it, made before the SCM checkout, so it is ready without
+ * transferring objects, and the checkout and later fetches only transfer what the store does not have yet.
+ * The store is only updated under the lock of its MirrorCache, and is never evicted or pruned, because
+ * the workspaces refer to its objects.
+ * Each workspace keeps its own refs, as the gatekeeper steps change local branches of their build only.
+ */
+@Log
+public class SharedObjectStore {
+
+    /**
+     * Build environment variable which enables the shared object store, set it to "true".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_GIT_SHARED";
+
+    /**
+     * Get the cache of shared repositories of the node the build runs on.
+     * @return MirrorCache, or null when the shared store is not enabled or the node is not available.
+     */
+    public static MirrorCache forBuild(AbstractBuild build, TaskListener listener, EnvVars environment) {
+        if (!Boolean.parseBoolean(environment.get(ENABLE_VARIABLE, "false"))) {
+            return null;
+        }
+        Node node = build.getBuiltOn();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null) {
+            return null;
+        }
+        // Workspaces refer to the objects of the stores, so they must never be evicted.
+        return new MirrorCache(nodeRoot.child("gatekeeper-shared-objects"), listener, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create and update a shared repository with given git client.
+     */
+    public static MirrorCache.Updater updater(final CliGitAPIImpl git) {
+        return new MirrorCache.Updater() {
+            public void create(String url, FilePath store) throws Exception {
+                git.launchCommand("clone", "--mirror", url, store.getRemote());
+                // Objects no longer referenced by the store can still be used by workspaces.
+                git.launchCommand("--git-dir=" + store.getRemote(), "config", "gc.pruneExpire", "never");
+            }
+
+            public void update(String url, FilePath store) throws Exception {
+                git.launchCommand("--git-dir=" + store.getRemote(), "fetch", "--prune", "origin");
+            }
+        };
+    }
+
+    /**
+     * Make the workspace of given build a shared clone of the store of its remote,
+     * unless it already holds a repository or other files.
+     */
+    public static void prepare(AbstractBuild build, BuildListener listener, GitSCM scm, EnvVars environment)
+            throws Exception {
+        MirrorCache cache = forBuild(build, listener, environment);
+        List<UserRemoteConfig> remotes = scm.getUserRemoteConfigs();
+        if (cache == null || remotes.isEmpty()) {
+            return;
+        }
+        FilePath path = GitBackend.getWorkingDirectory(build, listener, scm, environment);
+        if (path.child(".git").exists()) {
+            return;
+        }
+        if (path.exists() && !path.list().isEmpty()) {
+            listener.getLogger().println(
+                    "Workspace " + path.getRemote() + " is not empty, not sharing the Git objects of the node.");
+            return;
+        }
+        path.mkdirs();
+        String url = environment.expand(remotes.get(0).getUrl());
+        long start = System.currentTimeMillis();
+        AdvancedCliGit git = new AdvancedCliGit(scm, build.getBuiltOn().createLauncher(listener), build.getBuiltOn(),
+                new File(path.absolutize().getRemote()), listener, environment);
+        FilePath store = cache.update(url, updater(git));
+        try {
+            git.launchCommand("clone", "--shared", "--no-checkout", store.getRemote(), path.getRemote());
+            git.launchCommand("remote", "set-url", "origin", url);
+        } catch (Exception e) {
+            // Leave an empty workspace, for a full clone.
+            path.deleteContents();
+            throw e;
+        }
+        listener.getLogger().println("Created workspace sharing the Git objects of " + url + " in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Prepares workspaces of Git projects before the checkout.
+     */
+    @Extension
+    public static class WorkspacePreparer extends WorkspaceListener {
+        @Override
+        public void beforeUse(AbstractBuild build, FilePath workspace, BuildListener listener) {
+            SCM scm = build.getProject().getScm();
+            if (!(scm instanceof GitSCM)) {
+                return;
+            }
+            try {
+                prepare(build, listener, (GitSCM) scm, build.getEnvironment(listener));
+            } catch (Exception e) {
+                // The checkout makes a full clone instead.
+                log.log(Level.WARNING, "Failed to prepare shared Git workspace for " + build, e);
+                listener.getLogger().println("Failed to share the Git objects of the node: " + e);
+            }
+        }
+    }
+}
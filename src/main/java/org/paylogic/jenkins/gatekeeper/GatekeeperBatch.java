@@ -0,0 +1,265 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.StringParameterValue;
+import jenkins.model.Jenkins;
+import lombok.extern.java.Log;
+import org.paylogic.jenkins.LogMessageSearcher;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
+import org.paylogic.jenkins.upmerge.UpmergeBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gatekeeper requests for the same target branch, taken from the queue and processed by one build.
+ * All requests are merged on top of each other and tested once. When that fails, the batch is bisected
+ * to find the failing requests, and the others are pushed together.
+ * Failing requests taken from the queue are scheduled again on their own, so they are reported by their own build.
+ */
+@Log
+class GatekeeperBatch {
+
+    /**
+     * Build parameter to process a request on its own, set it to "false".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_BATCH";
+
+    /**
+     * A gatekeeper request: the parameters of a build.
+     */
+    static final class Request {
+        final List<ParameterValue> parameters;
+        final EnvVars environment;
+
+        /**
+         * Whether the request was taken from the queue, instead of being the request of the build itself.
+         */
+        final boolean queued;
+
+        Request(List<ParameterValue> parameters, EnvVars environment, boolean queued) {
+            this.parameters = parameters;
+            this.environment = environment;
+            this.queued = queued;
+        }
+
+        String getName() {
+            String revision = environment.get("APPROVED_REVISION", "");
+            String feature = environment.get("FEATURE_BRANCH", "");
+            return revision.isEmpty() ? feature : feature + " (" + revision + ")";
+        }
+    }
+
+    private final GatekeeperPipeline pipeline;
+    private final AbstractBuild build;
+    private final Launcher launcher;
+    private final BuildListener listener;
+    private final AdvancedSCMManager amm;
+
+    private final List<Request> accepted = new ArrayList<Request>();
+    private final List<Request> rejected = new ArrayList<Request>();
+
+    /**
+     * Whether the workspace holds exactly the accepted requests, as merged by the last attempt.
+     */
+    private boolean workspaceAccepted;
+
+    GatekeeperBatch(GatekeeperPipeline pipeline, AbstractBuild build, Launcher launcher, BuildListener listener,
+                    AdvancedSCMManager amm) {
+        this.pipeline = pipeline;
+        this.build = build;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.amm = amm;
+    }
+
+    /**
+     * Get the request of the build, and take up to batchSize - 1 queued requests of the same project and target
+     * branch out of the queue.
+     * @return List of requests, the request of the build first.
+     */
+    static List<Request> collect(AbstractBuild build, EnvVars envVars, int batchSize) {
+        List<ParameterValue> ownParameters = new ArrayList<ParameterValue>();
+        ParametersAction ownAction = build.getAction(ParametersAction.class);
+        if (ownAction != null) {
+            ownParameters.addAll(ownAction.getParameters());
+        }
+        List<Request> requests = new ArrayList<Request>();
+        requests.add(new Request(ownParameters, envVars, false));
+
+        // Environment without the parameters of the build, to apply those of queued requests to.
+        EnvVars baseEnvironment = new EnvVars(envVars);
+        for (ParameterValue parameter: ownParameters) {
+            baseEnvironment.remove(parameter.getName());
+        }
+        String targetBranch = envVars.get("TARGET_BRANCH", "");
+        Queue queue = Jenkins.getInstance().getQueue();
+        for (Queue.Item item: queue.getItems(build.getProject())) {
+            if (requests.size() >= batchSize) {
+                break;
+            }
+            ParametersAction action = item.getAction(ParametersAction.class);
+            if (action == null) {
+                continue;
+            }
+            EnvVars environment = new EnvVars(baseEnvironment);
+            for (ParameterValue parameter: action.getParameters()) {
+                parameter.buildEnvironment(build, environment);
+            }
+            if (!targetBranch.equals(environment.get("TARGET_BRANCH", ""))
+                    || "false".equals(environment.get(ENABLE_VARIABLE, ""))) {
+                continue;
+            }
+            // Only take the request when it did not start meanwhile.
+            if (queue.cancel(item)) {
+                requests.add(new Request(new ArrayList<ParameterValue>(action.getParameters()), environment, true));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Merge, test, upmerge and push the requests, bisecting the batch when it fails.
+     * Queued requests which were not pushed are scheduled again on their own, also when processing fails.
+     * @return false when nothing was pushed. The build is unstable when only its own request failed.
+     */
+    boolean process(List<Request> requests) throws Exception {
+        boolean pushed = false;
+        try {
+            pushed = push(requests);
+            return pushed;
+        } finally {
+            reschedule(requests, pushed);
+        }
+    }
+
+    private boolean push(List<Request> requests) throws Exception {
+        listener.getLogger().append("Gatekeeper batch of " + requests.size() + " requests.\n");
+        bisect(requests, false);
+        if (accepted.isEmpty()) {
+            return false;
+        }
+        if (!workspaceAccepted) {
+            prepare(accepted);
+        }
+
+        Request first = accepted.get(0);
+        List<String> branchesToPush = UpmergeBuilder.upmerge(build, amm, listener, first.environment,
+                pipeline.commitUsername, GatekeeperPipeline.hasTests(pipeline.testCommand));
+        List<String> branchNames = amm.getBranchNames(true);
+        for (Request request: accepted.subList(1, accepted.size())) {
+            String featureBranch = request.environment.get("FEATURE_BRANCH", "");
+            if (branchNames.contains(featureBranch) && !branchesToPush.contains(featureBranch)) {
+                branchesToPush.add(featureBranch);
+            }
+        }
+        amm.push(branchesToPush.toArray(new String[branchesToPush.size()]));
+        for (Request request: accepted) {
+            LogMessageSearcher.logMessage(build, listener, "Gatekeeper batch pushed " + request.getName() + ".");
+        }
+        if (rejected.contains(requests.get(0))) {
+            build.setResult(Result.UNSTABLE);
+        }
+        return true;
+    }
+
+    /**
+     * Schedule the queued requests again which were taken out of the queue, but not pushed.
+     */
+    private void reschedule(List<Request> requests, boolean pushed) {
+        for (Request request: requests) {
+            boolean wasRejected = rejected.contains(request);
+            if (wasRejected) {
+                LogMessageSearcher.logMessage(build, listener, "Gatekeeper batch rejected " + request.getName() + ".");
+            }
+            if (!request.queued || (pushed && accepted.contains(request))) {
+                continue;
+            }
+            if (!wasRejected) {
+                listener.getLogger().append("Gatekeeper batch did not push " + request.getName()
+                        + ", scheduling it again.\n");
+            }
+            List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+            for (ParameterValue parameter: request.parameters) {
+                if (!ENABLE_VARIABLE.equals(parameter.getName())) {
+                    parameters.add(parameter);
+                }
+            }
+            parameters.add(new StringParameterValue(ENABLE_VARIABLE, "false"));
+            build.getProject().scheduleBuild2(0, new Cause.UpstreamCause(build), new ParametersAction(parameters));
+        }
+    }
+
+    /**
+     * Accept the candidates when they pass on top of the accepted requests, otherwise bisect them.
+     * @param knownFailing : the candidates are known to fail on top of the accepted requests, so are not tried
+     */
+    private void bisect(List<Request> candidates, boolean knownFailing) throws Exception {
+        if (!knownFailing && attempt(candidates)) {
+            accepted.addAll(candidates);
+            workspaceAccepted = true;
+            return;
+        }
+        workspaceAccepted = false;
+        if (candidates.size() == 1) {
+            rejected.add(candidates.get(0));
+            return;
+        }
+        int half = candidates.size() / 2;
+        List<Request> firstHalf = candidates.subList(0, half);
+        int acceptedBefore = accepted.size();
+        bisect(firstHalf, false);
+        // When the whole first half passed, the second half is what made the candidates fail.
+        bisect(candidates.subList(half, candidates.size()), accepted.size() - acceptedBefore == firstHalf.size());
+    }
+
+    /**
+     * Merge the candidates on top of the accepted requests, and test the result.
+     */
+    private boolean attempt(List<Request> candidates) throws Exception {
+        List<Request> requests = new ArrayList<Request>(accepted);
+        requests.addAll(candidates);
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("batch of " + requests.size(), "builder", null);
+        try {
+            try {
+                prepare(requests);
+            } catch (MergeConflictException e) {
+                listener.getLogger().append("Merge conflict in batch: " + e.getMessage() + "\n");
+                return false;
+            }
+            return GatekeeperPipeline.runTests(pipeline.testCommand, build, launcher, listener);
+        } finally {
+            timeline.end(span, null);
+        }
+    }
+
+    /**
+     * Merge and commit the requests in a clean workspace.
+     */
+    private void prepare(List<Request> requests) throws Exception {
+        GatekeeperMerge merger = new GatekeeperMerge(
+                pipeline.commitUsername, pipeline.releaseFilePath, pipeline.releaseFileContentTemplate);
+        for (int i = 0; i < requests.size(); i++) {
+            EnvVars environment = requests.get(i).environment;
+            if (i == 0) {
+                merger.merge(build, amm, listener, environment);
+            } else {
+                GatekeeperMerge.mergeFeature(build, amm, listener, environment, false);
+            }
+            GatekeeperCommit.commit(build, amm, listener, environment.get("TARGET_BRANCH", ""),
+                    environment.get("FEATURE_BRANCH", ""), pipeline.commitUsername);
+        }
+    }
+}
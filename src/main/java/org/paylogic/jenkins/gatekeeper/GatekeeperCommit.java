@@ -10,13 +10,14 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
 import lombok.extern.java.Log;
-import org.jenkinsci.plugins.envinject.EnvInjectBuilderContributionAction;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
-import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
 import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
 
 import java.io.PrintStream;
 import java.util.HashMap;
@@ -42,32 +43,42 @@ public class GatekeeperCommit extends Builder {
         l.println("----------------------------------------------------------");
         l.println("------------------- Gatekeeper commit --------------------");
         l.println("----------------------------------------------------------");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("GatekeeperCommit", "builder", null);
+        Throwable failure = null;
         try {
             return this.doPerform(build, launcher, listener);
         } catch (Exception e) {
+            failure = e;
             log.log(Level.SEVERE, "Exception during Gatekeeeper commit.", e);
             l.append("Exception occured, build aborting...\n");
-            LogMessageSearcher.logMessage(listener, e.toString());
+            LogMessageSearcher.logMessage(build, listener, e.toString());
             return false;
+        } finally {
+            timeline.end(span, failure);
         }
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
-        EnvVars envVars = build.getEnvironment(listener);
+        GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
+        EnvVars envVars = context.getEnvironment(build, listener);
         String featureBranch = envVars.get("FEATURE_BRANCH", "");
         String targetBranch = envVars.get("TARGET_BRANCH", "");
 
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
-        commit(amm, listener, envVars, targetBranch, featureBranch, commitUsername);
+        AdvancedSCMManager amm = context.getManager(build, launcher, listener);
+        commit(build, amm, listener, targetBranch, featureBranch, commitUsername);
 
         // pass branches to push to later build actions
         Map<String, String> vars = new HashMap<String, String>();
         vars.put("BRANCHES_TO_PUSH", targetBranch);
-        build.addAction(new EnvInjectBuilderContributionAction(vars));
+        context.contribute(build, vars);
         return true;
     }
 
-    private void commit(AdvancedSCMManager amm, BuildListener listener, EnvVars envVars, String targetBranch, String featureBranch, String commitUsername) throws AdvancedSCMException {
+    /**
+     * Commit the merge in the workspace, and close the feature branch when it is a branch.
+     */
+    static void commit(AbstractBuild build, AdvancedSCMManager amm, BuildListener listener, String targetBranch, String featureBranch, String commitUsername) throws AdvancedSCMException {
         amm.commit("[Jenkins Integration Merge] Merged " + featureBranch + " into "
                         + targetBranch,
                 commitUsername);
@@ -76,7 +87,7 @@ public class GatekeeperCommit extends Builder {
             amm.closeBranch(featureBranch, "[Jenkins Integration Merge] Closing feature branch " + featureBranch, commitUsername);
             amm.update(targetBranch);
         }
-        LogMessageSearcher.logMessage(listener, "Gatekeeper merge was committed.");
+        LogMessageSearcher.logMessage(build, listener, "Gatekeeper merge was committed.");
     }
 
     @Override
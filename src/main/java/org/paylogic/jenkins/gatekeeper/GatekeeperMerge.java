@@ -11,16 +11,17 @@ import hudson.tasks.Builder;
 import hudson.util.FormValidation;
 import lombok.extern.java.Log;
 import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.plugins.envinject.EnvInjectBuilderContributionAction;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
-import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
 import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
 import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchImpl;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
 
 import com.github.jknack.handlebars.Handlebars;
 import com.github.jknack.handlebars.Template;
@@ -39,6 +40,10 @@ import java.util.logging.Level;
 @Log
 public class GatekeeperMerge extends Builder {
 
+    static final String MERGE_CONFLICT_MESSAGE = "Merge conflict occured when Gatekeeper merging, " +
+            "please check the Jenkins buildlog for conflicting files, resolve them, " +
+            "and reassign this case to Mergekeepers.";
+
     public final String releaseFilePath;
     public final String releaseFileContentTemplate;
     public final String commitUsername;
@@ -56,38 +61,70 @@ public class GatekeeperMerge extends Builder {
         l.println("----------------------------------------------------------");
         l.println("------------------- Gatekeeper merge ---------------------");
         l.println("----------------------------------------------------------");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("GatekeeperMerge", "builder", null);
+        Throwable failure = null;
         try {
             return this.doPerform(build, launcher, listener);
         } catch (MergeConflictException e) {
+            failure = e;
             log.log(Level.SEVERE, "Exception during Gatekeeeper merge.", e);
             l.append("Exception occured, build aborting...\n");
-            LogMessageSearcher.logMessage(listener, "Merge conflict occured when Gatekeeper merging, " +
-                    "please check the Jenkins buildlog for conflicting files, resolve them, " +
-                    "and reassign this case to Mergekeepers.");
+            LogMessageSearcher.logMessage(build, listener, MERGE_CONFLICT_MESSAGE);
             return false;
         } catch (Exception e) {
+            failure = e;
             log.log(Level.SEVERE, "Exception during Gatekeeeper merge.", e);
             l.append("Exception occured, build aborting...\n");
-            LogMessageSearcher.logMessage(listener, e.toString());
+            LogMessageSearcher.logMessage(build, listener, e.toString());
             return false;
+        } finally {
+            timeline.end(span, failure);
         }
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
         /* Set up enviroment and resolve some variables. */
-        EnvVars envVars = build.getEnvironment(listener);
-        String featureBranch = envVars.get("FEATURE_BRANCH", "");
-        String targetBranch = envVars.get("TARGET_BRANCH", "");
-        String featureRepoUrl = envVars.get("REPO_URL", "");
-        String okRevision = envVars.get("APPROVED_REVISION", "");
+        EnvVars envVars = context.getEnvironment(build, listener);
         int usableCaseId = 0;
 
         String repo_path = envVars.get("REPO_PATH", "");
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+        AdvancedSCMManager amm = context.getManager(build, launcher, listener);
+        merge(build, amm, listener, envVars);
+        return true;
+    }
+
+    /**
+     * Merge the feature branch, or the approved revision, into the target branch in the workspace.
+     */
+    void merge(AbstractBuild build, AdvancedSCMManager amm, BuildListener listener, EnvVars envVars)
+            throws Exception {
+        prepare(amm, listener, envVars);
+        mergeFeature(build, amm, listener, envVars, true);
+    }
+
+    /**
+     * Strip local changes, and make sure the target branch exists.
+     */
+    void prepare(AdvancedSCMManager amm, BuildListener listener, EnvVars envVars) throws Exception {
+        String targetBranch = envVars.get("TARGET_BRANCH", "");
         amm.stripLocal();
 
         listener.getLogger().append("Ensuring target release branch " + targetBranch + ".\n");
         ensureReleaseBranch(amm, targetBranch);
+    }
+
+    /**
+     * Pull the feature branch, or the approved revision, and merge it into the workspace.
+     * @param updateClean : update the workspace to a clean target branch before merging
+     */
+    static void mergeFeature(AbstractBuild build, AdvancedSCMManager amm, BuildListener listener, EnvVars envVars,
+                             boolean updateClean) throws Exception {
+        String featureBranch = envVars.get("FEATURE_BRANCH", "");
+        String targetBranch = envVars.get("TARGET_BRANCH", "");
+        String featureRepoUrl = envVars.get("REPO_URL", "");
+        String okRevision = envVars.get("APPROVED_REVISION", "");
 
         /* Actual Gatekeepering logic. Seperated to work differently when Rietveld support is active. */
         boolean runNormalMerge = okRevision.isEmpty();
@@ -98,31 +135,30 @@ public class GatekeeperMerge extends Builder {
 
             /* Actual gatekeepering commands.*/
             amm.pull(featureRepoUrl, featureBranch);
-            amm.updateClean(targetBranch);
+            if (updateClean) {
+                amm.updateClean(targetBranch);
+            }
             amm.mergeWorkspaceWith(okRevision, null);
-            LogMessageSearcher.logMessage(listener, "Gatekeeper merge merged " +
+            LogMessageSearcher.logMessage(build, listener, "Gatekeeper merge merged " +
                     okRevision + " from " + featureRepoUrl + " to " + targetBranch + ".");
         } else {
             amm.pull(featureRepoUrl, featureBranch);
-            amm.updateClean(targetBranch);
+            if (updateClean) {
+                amm.updateClean(targetBranch);
+            }
             amm.mergeWorkspaceWith(featureBranch, null);
-            LogMessageSearcher.logMessage(listener, "Gatekeeper merge merged " +
+            LogMessageSearcher.logMessage(build, listener, "Gatekeeper merge merged " +
                     featureBranch + " to " + targetBranch + ".");
         }
-        return true;
     }
 
     private void ensureReleaseBranch(AdvancedSCMManager amm, String targetBranch) throws AdvancedSCMException, ReleaseBranchInvalidException{
         String releaseFileContent = null;
         if (releaseFileContentTemplate != null && !releaseFileContentTemplate.isEmpty()
                 && releaseFilePath != null && !releaseFilePath.isEmpty()) {
-            Handlebars handlebars = new Handlebars();
-            Context templateContext = Context.newContext(null);
-            templateContext.data("release", amm.getReleaseBranch(targetBranch).getReleaseName());
-            Template mustacheTemplate;
             try {
-                mustacheTemplate = handlebars.compileInline(releaseFileContentTemplate);
-                releaseFileContent = mustacheTemplate.apply(templateContext);
+                releaseFileContent = renderReleaseFileContent(
+                        releaseFileContentTemplate, amm.getReleaseBranch(targetBranch).getReleaseName());
             } catch (IOException e) {
                 throw new AdvancedSCMException("Error rendering release file content template");
             }
@@ -132,6 +168,17 @@ public class GatekeeperMerge extends Builder {
                 "[Jenkins Integration Merge] " + targetBranch + " release", commitUsername);
     }
 
+    /**
+     * Render the release file content template, with the release name available as {{release}}.
+     */
+    public static String renderReleaseFileContent(String template, String release) throws IOException {
+        Handlebars handlebars = new Handlebars();
+        Context templateContext = Context.newContext(null);
+        templateContext.data("release", release);
+        Template mustacheTemplate = handlebars.compileInline(template);
+        return mustacheTemplate.apply(templateContext);
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl)super.getDescriptor();
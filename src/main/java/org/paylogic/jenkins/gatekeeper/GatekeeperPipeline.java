@@ -0,0 +1,221 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.tasks.Shell;
+import hudson.util.FormValidation;
+import lombok.extern.java.Log;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.paylogic.jenkins.LogMessageSearcher;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
+import org.paylogic.jenkins.upmerge.UpmergeBuilder;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Gatekeeper merge, commit, upmerge and push in one build step, with an optional test command after the commit.
+ * All steps use one manager and branch snapshot, and all branches are pushed at once.
+ * With a batch size, queued requests for the same target branch are processed together, see GatekeeperBatch.
+ * Use the separate builders to run other build steps in between.
+ */
+@Log
+public class GatekeeperPipeline extends Builder {
+
+    public final String commitUsername;
+    public final String releaseFilePath;
+    public final String releaseFileContentTemplate;
+
+    /**
+     * Shell script to run on the merged workspace before upmerging, the build fails when it fails. Optional.
+     */
+    public final String testCommand;
+
+    /**
+     * Maximum number of requests for the same target branch to process in one build, taking the others
+     * from the queue. 0 or 1 processes only the request of the build.
+     */
+    public final int batchSize;
+
+    @DataBoundConstructor
+    public GatekeeperPipeline(String commitUsername, String releaseFilePath, String releaseFileContentTemplate,
+                              String testCommand, int batchSize) {
+        this.commitUsername = commitUsername;
+        this.releaseFilePath = releaseFilePath;
+        this.releaseFileContentTemplate = releaseFileContentTemplate;
+        this.testCommand = testCommand;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
+        PrintStream l = listener.getLogger();
+        l.println("----------------------------------------------------------");
+        l.println("------------------ Gatekeeper pipeline -------------------");
+        l.println("----------------------------------------------------------");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("GatekeeperPipeline", "builder", null);
+        Throwable failure = null;
+        try {
+            return this.doPerform(build, launcher, listener);
+        } catch (Exception e) {
+            failure = e;
+            // Conflicts of the feature branch are reported by doPerform, upmerge conflicts report what failed.
+            return abort(build, listener, e, e.toString());
+        } finally {
+            timeline.end(span, failure);
+        }
+    }
+
+    private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        EnvVars envVars = context.getEnvironment(build, listener);
+        String featureBranch = envVars.get("FEATURE_BRANCH", "");
+        String targetBranch = envVars.get("TARGET_BRANCH", "");
+        AdvancedSCMManager amm = context.getManager(build, launcher, listener);
+
+        if (batchSize > 1 && !"false".equals(envVars.get(GatekeeperBatch.ENABLE_VARIABLE, ""))) {
+            return new GatekeeperBatch(this, build, launcher, listener, amm).process(
+                    GatekeeperBatch.collect(build, envVars, batchSize));
+        }
+
+        Span step = timeline.start("merge", "builder", null);
+        Exception failure = null;
+        try {
+            new GatekeeperMerge(commitUsername, releaseFilePath, releaseFileContentTemplate)
+                    .merge(build, amm, listener, envVars);
+        } catch (MergeConflictException e) {
+            failure = e;
+            return abort(build, listener, e, GatekeeperMerge.MERGE_CONFLICT_MESSAGE);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+
+        step = timeline.start("commit", "builder", null);
+        try {
+            GatekeeperCommit.commit(build, amm, listener, targetBranch, featureBranch, commitUsername);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+
+        if (!runTests(testCommand, build, launcher, listener)) {
+            LogMessageSearcher.logMessage(build, listener, "Gatekeeper tests failed, nothing was pushed.");
+            return false;
+        }
+
+        // Without tests the workspace was just pulled, so new releases can only be missed when there are tests.
+        List<String> branchesToPush;
+        step = timeline.start("upmerge", "builder", null);
+        try {
+            branchesToPush = UpmergeBuilder.upmerge(
+                    build, amm, listener, envVars, commitUsername, hasTests(testCommand));
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+
+        step = timeline.start("push", "builder", null);
+        try {
+            amm.push(branchesToPush.toArray(new String[branchesToPush.size()]));
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+        LogMessageSearcher.logMessage(build, listener, "Gatekeeper push is done.");
+
+        // pass pushed branches to later build actions
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("BRANCHES_TO_PUSH", StringUtils.join(branchesToPush, ","));
+        context.contribute(build, vars);
+        return true;
+    }
+
+    private static boolean abort(AbstractBuild build, BuildListener listener, Exception e, String message) {
+        log.log(Level.SEVERE, "Exception during Gatekeeeper pipeline.", e);
+        listener.getLogger().append("Exception occured, build aborting...\n");
+        LogMessageSearcher.logMessage(build, listener, message);
+        return false;
+    }
+
+    static boolean hasTests(String testCommand) {
+        return StringUtils.isNotBlank(testCommand);
+    }
+
+    /**
+     * Run given test command on the workspace.
+     * @return whether the tests passed, true when there is no test command.
+     */
+    static boolean runTests(String testCommand, AbstractBuild build, Launcher launcher, BuildListener listener)
+            throws InterruptedException {
+        if (!hasTests(testCommand)) {
+            return true;
+        }
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("test", "builder", null);
+        Throwable failure = null;
+        try {
+            return new Shell(testCommand).perform(build, launcher, listener);
+        } catch (InterruptedException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(span, failure);
+        }
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Perform Gatekeeper merge, commit, upmerge and push.";
+        }
+
+        public FormValidation doCheckCommitUsername(@QueryParameter String value) {
+            if (!value.isEmpty()) {
+                return FormValidation.ok();
+            }
+            else {
+                return FormValidation.error("Required field");
+            }
+        }
+    }
+}
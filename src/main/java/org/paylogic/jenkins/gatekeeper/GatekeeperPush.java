@@ -8,23 +8,57 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
 import lombok.extern.java.Log;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
-import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.advancedscm.exceptions.PushCreatesNewRemoteHeadException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
 
 import java.io.PrintStream;
+import java.util.Random;
 import java.util.logging.Level;
 
 /**
  * Created by bubenkoff on 20.12.13.
+ *
+ * When the push is rejected because the remote got new commits meanwhile, they are pulled and merged into
+ * the branches to push, as long as they changed other files than the build did, and the push is retried
+ * after a jittered backoff. Otherwise the request has to be built again.
  */
 @Log
 public class GatekeeperPush extends Builder {
 
-    @DataBoundConstructor
+    /**
+     * Backoff before the first retry, doubled for every next retry (time is in milliseconds).
+     */
+    public static final long RETRY_BACKOFF = 1000;
+    public static final long MAX_RETRY_BACKOFF = 30 * 1000;
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * User name for the merge commits of retries.
+     */
+    public final String commitUsername;
+
+    /**
+     * Number of times to merge new remote commits and push again, 0 to fail on the first rejected push.
+     */
+    public final int pushRetries;
+
     public GatekeeperPush() {
+        this(null, 0);
+    }
+
+    @DataBoundConstructor
+    public GatekeeperPush(String commitUsername, int pushRetries) {
+        this.commitUsername = commitUsername;
+        this.pushRetries = pushRetries;
     }
 
     @Override
@@ -33,23 +67,69 @@ public class GatekeeperPush extends Builder {
         l.println("----------------------------------------------------------");
         l.println("-------------------- Gatekeeper push ---------------------");
         l.println("----------------------------------------------------------");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("GatekeeperPush", "builder", null);
+        Throwable failure = null;
         try {
             return this.doPerform(build, launcher, listener);
         } catch (Exception e) {
+            failure = e;
             log.log(Level.SEVERE, "Exception during Gatekeeeper push.", e);
             l.append("Exception occured, build aborting...\n");
-            LogMessageSearcher.logMessage(listener, e.toString());
+            LogMessageSearcher.logMessage(build, listener, e.toString());
             return false;
+        } finally {
+            timeline.end(span, failure);
         }
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
         /* Set up enviroment and resolve some variables. */
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
-        EnvVars envVars = build.getEnvironment(listener);
+        AdvancedSCMManager amm = context.getManager(build, launcher, listener);
+        EnvVars envVars = context.getEnvironment(build, listener);
         String branches_to_push = envVars.get("BRANCHES_TO_PUSH", "");
-        amm.push(branches_to_push.split(","));
-        LogMessageSearcher.logMessage(listener, "Gatekeeper push is done.");
+        String[] branches = branches_to_push.split(",");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                amm.push(branches);
+                break;
+            } catch (PushCreatesNewRemoteHeadException e) {
+                if (attempt >= pushRetries) {
+                    throw e;
+                }
+                long backoff = Math.min(MAX_RETRY_BACKOFF, RETRY_BACKOFF << attempt);
+                backoff = backoff / 2 + (long) (RANDOM.nextDouble() * backoff / 2);
+                listener.getLogger().println("Push rejected, the remote got new commits. Merging them and retrying in "
+                        + backoff + " ms (" + (attempt + 1) + "/" + pushRetries + ").");
+                Thread.sleep(backoff);
+                Span span = timeline.start("push retry " + (attempt + 1), "builder", null);
+                Exception failure = null;
+                try {
+                    // Any of the pushed branches can have new remote commits, and a backend can pull one branch only.
+                    for (String branch: branches) {
+                        if (!branch.isEmpty()) {
+                            amm.pull(null, branch);
+                        }
+                    }
+                    for (String branch: branches) {
+                        if (!branch.isEmpty() && !amm.mergeRemoteChanges(branch,
+                                "[Jenkins Gatekeeping] Merged new remote commits of " + branch, commitUsername)) {
+                            LogMessageSearcher.logMessage(build, listener, "New remote commits of " + branch
+                                    + " change the same files as this request, it has to be built again.");
+                            throw e;
+                        }
+                    }
+                } catch (Exception pullFailure) {
+                    failure = pullFailure;
+                    throw pullFailure;
+                } finally {
+                    timeline.end(span, failure);
+                }
+            }
+        }
+        LogMessageSearcher.logMessage(build, listener, "Gatekeeper push is done.");
         return true;
     }
 
@@ -76,5 +156,15 @@ public class GatekeeperPush extends Builder {
             super();
             load();
         }
+
+        public FormValidation doCheckPushRetries(@QueryParameter String value) {
+            try {
+                if (value.isEmpty() || Integer.parseInt(value) >= 0) {
+                    return FormValidation.ok();
+                }
+            } catch (NumberFormatException e) {
+            }
+            return FormValidation.error("Not a positive number");
+        }
     }
 }
@@ -0,0 +1,200 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import lombok.extern.java.Log;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.paylogic.jenkins.LogMessageSearcher;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
+import org.paylogic.jenkins.upmerge.UpmergeBuilder;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Gatekeeper merge, test, upmerge and push as a car of the merge train of the target branch.
+ * The request is merged and tested on top of the requests of the builds ahead in the train, in parallel with them.
+ * Once the builds ahead pushed, the request is merged again on the pushed target branch, which must have
+ * the content the request was tested on, and pushed. Otherwise the build is scheduled again.
+ * The project must allow concurrent builds.
+ */
+@Log
+public class GatekeeperTrain extends Builder {
+
+    public final String commitUsername;
+    public final String releaseFilePath;
+    public final String releaseFileContentTemplate;
+
+    /**
+     * Shell script to run on the speculatively merged workspace, the request fails when it fails. Optional.
+     */
+    public final String testCommand;
+
+    @DataBoundConstructor
+    public GatekeeperTrain(String commitUsername, String releaseFilePath, String releaseFileContentTemplate,
+                           String testCommand) {
+        this.commitUsername = commitUsername;
+        this.releaseFilePath = releaseFilePath;
+        this.releaseFileContentTemplate = releaseFileContentTemplate;
+        this.testCommand = testCommand;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
+        PrintStream l = listener.getLogger();
+        l.println("----------------------------------------------------------");
+        l.println("-------------------- Gatekeeper train --------------------");
+        l.println("----------------------------------------------------------");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("GatekeeperTrain", "builder", null);
+        Throwable failure = null;
+        try {
+            return this.doPerform(build, launcher, listener);
+        } catch (MergeConflictException e) {
+            failure = e;
+            log.log(Level.SEVERE, "Exception during Gatekeeeper train.", e);
+            l.append("Exception occured, build aborting...\n");
+            LogMessageSearcher.logMessage(build, listener, GatekeeperMerge.MERGE_CONFLICT_MESSAGE);
+            return false;
+        } catch (Exception e) {
+            failure = e;
+            log.log(Level.SEVERE, "Exception during Gatekeeeper train.", e);
+            l.append("Exception occured, build aborting...\n");
+            LogMessageSearcher.logMessage(build, listener, e.toString());
+            return false;
+        } finally {
+            timeline.end(span, failure);
+        }
+    }
+
+    private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        EnvVars envVars = context.getEnvironment(build, listener);
+        String featureBranch = envVars.get("FEATURE_BRANCH", "");
+        String targetBranch = envVars.get("TARGET_BRANCH", "");
+        AdvancedSCMManager amm = context.getManager(build, launcher, listener);
+        GatekeeperMerge merger = new GatekeeperMerge(commitUsername, releaseFilePath, releaseFileContentTemplate);
+
+        MergeTrain train = MergeTrain.forTarget(build.getProject(), targetBranch);
+        MergeTrain.Car car = train.join(build, envVars);
+        List<MergeTrain.Car> ahead = train.getAhead(car);
+
+        // Merge the requests ahead as they will be pushed, and this request on top of them.
+        Span step = timeline.start("speculative merge", "builder", ahead.size() + " requests ahead");
+        String baseContent;
+        Exception failure = null;
+        try {
+            merger.prepare(amm, listener, envVars);
+            if (ahead.isEmpty()) {
+                amm.updateClean(targetBranch);
+            }
+            for (int i = 0; i < ahead.size(); i++) {
+                EnvVars environment = ahead.get(i).environment;
+                GatekeeperMerge.mergeFeature(build, amm, listener, environment, i == 0);
+                GatekeeperCommit.commit(build, amm, listener, targetBranch,
+                        environment.get("FEATURE_BRANCH", ""), commitUsername);
+            }
+            baseContent = amm.getContentId(targetBranch);
+            GatekeeperMerge.mergeFeature(build, amm, listener, envVars, false);
+            GatekeeperCommit.commit(build, amm, listener, targetBranch, featureBranch, commitUsername);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+        train.merged(car, ahead, baseContent);
+
+        if (!GatekeeperPipeline.runTests(testCommand, build, launcher, listener)) {
+            LogMessageSearcher.logMessage(build, listener, "Gatekeeper tests failed, nothing was pushed.");
+            return false;
+        }
+
+        step = timeline.start("wait for merge train", "builder", null);
+        try {
+            train.waitForHead(car);
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+
+        // Merge again on the pushed target branch, which must be what the speculative merge was tested on.
+        amm.pull(null, targetBranch);
+        merger.prepare(amm, listener, envVars);
+        amm.updateClean(targetBranch);
+        if (!baseContent.equals(amm.getContentId(targetBranch))) {
+            LogMessageSearcher.logMessage(build, listener, "Target branch " + targetBranch
+                    + " changed since the speculative merge, scheduling the request again.");
+            train.restart(car);
+            return false;
+        }
+        GatekeeperMerge.mergeFeature(build, amm, listener, envVars, false);
+        GatekeeperCommit.commit(build, amm, listener, targetBranch, featureBranch, commitUsername);
+        List<String> branchesToPush;
+        try {
+            branchesToPush = UpmergeBuilder.upmerge(build, amm, listener, envVars, commitUsername, false);
+        } catch (MergeConflictException e) {
+            // Not a conflict of the request, report what failed like UpmergeBuilder does.
+            log.log(Level.SEVERE, "Exception during Gatekeeeper train.", e);
+            listener.getLogger().append("Exception occured, build aborting...\n");
+            LogMessageSearcher.logMessage(build, listener, e.toString());
+            return false;
+        }
+
+        step = timeline.start("push", "builder", null);
+        try {
+            amm.push(branchesToPush.toArray(new String[branchesToPush.size()]));
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            timeline.end(step, failure);
+        }
+        train.pushed(car);
+        LogMessageSearcher.logMessage(build, listener, "Gatekeeper push is done.");
+        return true;
+    }
+
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl)super.getDescriptor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Perform Gatekeeper merge, test, upmerge and push in a merge train.";
+        }
+
+        public FormValidation doCheckCommitUsername(@QueryParameter String value) {
+            if (!value.isEmpty()) {
+                return FormValidation.ok();
+            }
+            else {
+                return FormValidation.error("Required field");
+            }
+        }
+    }
+}
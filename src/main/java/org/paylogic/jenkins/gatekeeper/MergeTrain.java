@@ -0,0 +1,301 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Executor;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Result;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import lombok.extern.java.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Gatekeeper builds of one project and target branch, in the order they joined.
+ * Each build merges the requests of the builds ahead of it before its own, and tests that speculative result
+ * while the builds ahead are still running. Only the head of the train pushes.
+ * When a build leaves the train without pushing, the builds behind it which merged its request are aborted
+ * and scheduled again, keeping their place in the train.
+ * The trains live in the memory of the controller only, a train is removed when its last car leaves.
+ */
+@Log
+public class MergeTrain {
+
+    /**
+     * Build parameter with the id of the car a scheduled again build takes the place of.
+     */
+    public static final String CAR_VARIABLE = "GATEKEEPER_TRAIN_CAR";
+
+    private static final Map<String, MergeTrain> TRAINS = new HashMap<String, MergeTrain>();
+
+    private static final AtomicLong LAST_CAR_ID = new AtomicLong();
+
+    /**
+     * Place of one request in the train.
+     */
+    public static final class Car {
+        final long id;
+        final List<ParameterValue> parameters;
+        final EnvVars environment;
+        private String buildId;
+        private AbstractBuild build;
+
+        /**
+         * Ids of the cars ahead which requests were merged speculatively, null before merging.
+         */
+        private List<Long> merged;
+
+        /**
+         * Content id of the speculative merge of the cars ahead, on which the request of this car was merged.
+         */
+        private String baseContent;
+
+        /**
+         * Whether the build of the car is aborted to be scheduled again, so its completion does not end the car.
+         */
+        private boolean restarting;
+
+        /**
+         * The build scheduled again, until it joins.
+         */
+        private Future<?> restarted;
+
+        Car(long id, List<ParameterValue> parameters, EnvVars environment) {
+            this.id = id;
+            this.parameters = parameters;
+            this.environment = environment;
+        }
+
+        public String getBaseContent() {
+            return baseContent;
+        }
+    }
+
+    private final List<Car> cars = new ArrayList<Car>();
+
+    private final String key;
+
+    /**
+     * Number of builds which got the train but did not join it yet, guarded by TRAINS.
+     */
+    private int joining;
+
+    private MergeTrain(String key) {
+        this.key = key;
+    }
+
+    private static String key(AbstractProject project, String targetBranch) {
+        return project.getFullName() + "@" + targetBranch;
+    }
+
+    /**
+     * Get the train of given project and target branch, the build has to join it next.
+     */
+    public static MergeTrain forTarget(AbstractProject project, String targetBranch) {
+        String key = key(project, targetBranch);
+        synchronized (TRAINS) {
+            MergeTrain train = TRAINS.get(key);
+            if (train == null) {
+                train = new MergeTrain(key);
+                TRAINS.put(key, train);
+            }
+            train.joining++;
+            return train;
+        }
+    }
+
+    /**
+     * @return whether given project and target branch have a train.
+     */
+    static boolean exists(AbstractProject project, String targetBranch) {
+        synchronized (TRAINS) {
+            return TRAINS.containsKey(key(project, targetBranch));
+        }
+    }
+
+    /**
+     * Add the request of given build at the end of the train, or at the place it had when it was scheduled again.
+     */
+    public synchronized Car join(AbstractBuild build, EnvVars environment) {
+        synchronized (TRAINS) {
+            joining--;
+        }
+        String carId = environment.get(CAR_VARIABLE, "");
+        for (Car car: cars) {
+            if (String.valueOf(car.id).equals(carId)) {
+                bind(car, build);
+                return car;
+            }
+        }
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        ParametersAction action = build.getAction(ParametersAction.class);
+        if (action != null) {
+            for (ParameterValue parameter: action.getParameters()) {
+                if (!CAR_VARIABLE.equals(parameter.getName())) {
+                    parameters.add(parameter);
+                }
+            }
+        }
+        Car car = new Car(LAST_CAR_ID.incrementAndGet(), parameters, environment);
+        bind(car, build);
+        cars.add(car);
+        return car;
+    }
+
+    private void bind(Car car, AbstractBuild build) {
+        car.build = build;
+        car.buildId = build.getExternalizableId();
+        car.merged = null;
+        car.baseContent = null;
+        car.restarting = false;
+        car.restarted = null;
+    }
+
+    /**
+     * @return List of the cars ahead of given car, head first.
+     */
+    public synchronized List<Car> getAhead(Car car) {
+        int index = cars.indexOf(car);
+        return new ArrayList<Car>(cars.subList(0, Math.max(index, 0)));
+    }
+
+    /**
+     * Record that the requests of given cars ahead were merged, followed by the request of the car.
+     */
+    public synchronized void merged(Car car, List<Car> ahead, String baseContent) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Car other: ahead) {
+            ids.add(other.id);
+        }
+        car.merged = ids;
+        car.baseContent = baseContent;
+    }
+
+    /**
+     * Wait until given car is the head of the train.
+     */
+    public synchronized void waitForHead(Car car) throws InterruptedException {
+        while (cars.indexOf(car) > 0) {
+            removeLost();
+            wait(10000);
+        }
+    }
+
+    /**
+     * Remove the cars which builds completed without it being noticed, or which were scheduled again
+     * but will not run.
+     */
+    private void removeLost() {
+        for (Car car: new ArrayList<Car>(cars)) {
+            boolean lost = car.restarting
+                    ? car.restarted == null || car.restarted.isCancelled()
+                    : !car.build.isBuilding();
+            if (lost) {
+                car.restarting = false;
+                completed(car);
+            }
+        }
+    }
+
+    /**
+     * The request of given car was pushed, it leaves the train.
+     */
+    public synchronized void pushed(Car car) {
+        cars.remove(car);
+        removeWhenEmpty();
+        notifyAll();
+    }
+
+    /**
+     * Remove the train when it has no cars left, and no build is about to join it.
+     */
+    private void removeWhenEmpty() {
+        synchronized (TRAINS) {
+            if (cars.isEmpty() && joining == 0 && TRAINS.get(key) == this) {
+                TRAINS.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Abort the build of given car, and schedule it again at the same place.
+     */
+    public synchronized void restart(Car car) {
+        if (car.restarting) {
+            return;
+        }
+        car.restarting = true;
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>(car.parameters);
+        parameters.add(new StringParameterValue(CAR_VARIABLE, String.valueOf(car.id)));
+        AbstractBuild build = car.build;
+        car.restarted = build.getProject().scheduleBuild2(
+                0, new Cause.UpstreamCause(build), new ParametersAction(parameters));
+        Executor executor = build.getExecutor();
+        if (executor != null && executor.getCurrentExecutable() == build) {
+            executor.interrupt(Result.ABORTED);
+        }
+        notifyAll();
+    }
+
+    /**
+     * The build of given car completed.
+     * When it did not push and is not scheduled again, the car leaves the train, and the cars which merged its
+     * request speculatively are scheduled again.
+     */
+    synchronized void completed(Car car) {
+        if (car.restarting || !cars.contains(car)) {
+            return;
+        }
+        cars.remove(car);
+        for (Car other: new ArrayList<Car>(cars)) {
+            if (other.merged != null && other.merged.contains(car.id)) {
+                log.log(Level.INFO, "Restarting " + other.buildId + " of the merge train, "
+                        + car.buildId + " left it without pushing.");
+                restart(other);
+            }
+        }
+        removeWhenEmpty();
+        notifyAll();
+    }
+
+    private synchronized Car findCar(String buildId) {
+        for (Car car: cars) {
+            if (buildId.equals(car.buildId)) {
+                return car;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends the cars of builds when they complete.
+     */
+    @Extension
+    public static class BuildCleanup extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            List<MergeTrain> trains;
+            synchronized (TRAINS) {
+                trains = new ArrayList<MergeTrain>(TRAINS.values());
+            }
+            for (MergeTrain train: trains) {
+                Car car = train.findCar(build.getExternalizableId());
+                if (car != null) {
+                    train.completed(car);
+                }
+            }
+        }
+    }
+}
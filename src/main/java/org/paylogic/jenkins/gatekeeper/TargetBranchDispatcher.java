@@ -0,0 +1,113 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.model.queue.WorkUnit;
+import hudson.scm.SCM;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allows at most one running gatekeeper build per repository and target branch, so builds pushing to
+ * the same branch do not race, while builds for other target branches run in parallel.
+ * The repository is identified by the key of the SCM of the project, so this holds across projects.
+ * Gatekeeper projects can then allow concurrent builds. Merge train projects are left alone,
+ * they run builds for the same target branch in parallel on purpose.
+ */
+@Extension
+public class TargetBranchDispatcher extends QueueTaskDispatcher {
+
+    /**
+     * Build parameter with the target branch.
+     */
+    public static final String TARGET_VARIABLE = "TARGET_BRANCH";
+
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+        String key = getKey(item.task, item.getAction(ParametersAction.class));
+        if (key == null) {
+            return null;
+        }
+        for (Computer computer: Jenkins.getInstance().getComputers()) {
+            List<Executor> executors = new ArrayList<Executor>(computer.getExecutors());
+            executors.addAll(computer.getOneOffExecutors());
+            for (Executor executor: executors) {
+                // The work unit is set as soon as the executor is assigned, before the build is created.
+                WorkUnit workUnit = executor.getCurrentWorkUnit();
+                if (workUnit == null) {
+                    continue;
+                }
+                Queue.Item running = workUnit.context.item;
+                if (running.getId() != item.getId()
+                        && key.equals(getKey(running.task, running.getAction(ParametersAction.class)))) {
+                    return new TargetBranchBusy(getTarget(item.getAction(ParametersAction.class)));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return String identifying the repository and target branch of a gatekeeper build of given task,
+     * null when the task does not run gatekeeper steps which push, or has no target branch.
+     */
+    static String getKey(Queue.Task task, ParametersAction parameters) {
+        if (!(task instanceof Project)) {
+            return null;
+        }
+        Project project = (Project) task;
+        boolean gatekeeper = false;
+        for (Object builder: project.getBuildersList()) {
+            if (builder instanceof GatekeeperTrain) {
+                return null;
+            }
+            if (builder instanceof GatekeeperPush || builder instanceof GatekeeperPipeline) {
+                gatekeeper = true;
+            }
+        }
+        String target = getTarget(parameters);
+        if (!gatekeeper || target == null) {
+            return null;
+        }
+        SCM scm = project.getScm();
+        return (scm == null ? "" : scm.getKey()) + "@" + target;
+    }
+
+    private static String getTarget(ParametersAction parameters) {
+        if (parameters == null) {
+            return null;
+        }
+        ParameterValue value = parameters.getParameter(TARGET_VARIABLE);
+        if (!(value instanceof StringParameterValue)) {
+            return null;
+        }
+        String target = ((StringParameterValue) value).value;
+        return target == null || target.isEmpty() ? null : target;
+    }
+
+    /**
+     * Another gatekeeper build for the same target branch is running.
+     */
+    public static final class TargetBranchBusy extends CauseOfBlockage {
+        private final String target;
+
+        TargetBranchBusy(String target) {
+            this.target = target;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "A gatekeeper build for target branch " + target + " is running";
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.paylogic.jenkins.metrics;
+
+import hudson.model.AbstractBuild;
+import hudson.scm.SCM;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide registry of gatekeeper metrics, recorded by every build since the controller started.
+ * Series are keyed by a list of label values.
+ */
+public class GatekeeperMetrics {
+
+    private static final GatekeeperMetrics INSTANCE = new GatekeeperMetrics();
+
+    private static final double[] CHAIN_LENGTH_BOUNDS = {0, 1, 2, 3, 4, 5, 7, 10, 15, 20};
+
+    /**
+     * Duration of AdvancedSCMManager calls, by operation, repository and target branch.
+     */
+    private final ConcurrentMap<List<String>, Histogram> calls = new ConcurrentHashMap<List<String>, Histogram>();
+
+    /**
+     * Failed AdvancedSCMManager calls, by operation, repository, target branch and exception class.
+     */
+    private final ConcurrentMap<List<String>, AtomicLong> failures = new ConcurrentHashMap<List<String>, AtomicLong>();
+
+    /**
+     * Number of upmerges per upmerge chain, by repository and target branch.
+     */
+    private final ConcurrentMap<List<String>, Histogram> upmergeChains =
+            new ConcurrentHashMap<List<String>, Histogram>();
+
+    public static GatekeeperMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return String labelling the repository of given build, the key of its SCM.
+     */
+    public static String repository(AbstractBuild build) {
+        SCM scm = build.getProject().getScm();
+        return scm == null ? "" : scm.getKey();
+    }
+
+    public void recordCall(String operation, String repository, String targetBranch, long nanos, Throwable failure) {
+        histogram(calls, Arrays.asList(operation, repository, targetBranch), Histogram.LATENCY_BOUNDS)
+                .record(nanos / 1e9);
+        if (failure != null) {
+            List<String> key = Arrays.asList(operation, repository, targetBranch, failure.getClass().getSimpleName());
+            AtomicLong counter = failures.get(key);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = failures.putIfAbsent(key, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    public void recordUpmergeChain(String repository, String targetBranch, int length) {
+        histogram(upmergeChains, Arrays.asList(repository, targetBranch), CHAIN_LENGTH_BOUNDS).record(length);
+    }
+
+    private static Histogram histogram(ConcurrentMap<List<String>, Histogram> series, List<String> key, double[] bounds) {
+        Histogram histogram = series.get(key);
+        if (histogram == null) {
+            Histogram created = new Histogram(bounds);
+            histogram = series.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return JSONObject with all series.
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        JSONArray callSeries = new JSONArray();
+        for (Map.Entry<List<String>, Histogram> entry: calls.entrySet()) {
+            JSONObject series = histogramToJSON(entry.getValue());
+            series.put("operation", entry.getKey().get(0));
+            series.put("repository", entry.getKey().get(1));
+            series.put("targetBranch", entry.getKey().get(2));
+            callSeries.add(series);
+        }
+        json.put("calls", callSeries);
+
+        JSONArray failureSeries = new JSONArray();
+        for (Map.Entry<List<String>, AtomicLong> entry: failures.entrySet()) {
+            JSONObject series = new JSONObject();
+            series.put("operation", entry.getKey().get(0));
+            series.put("repository", entry.getKey().get(1));
+            series.put("targetBranch", entry.getKey().get(2));
+            series.put("exception", entry.getKey().get(3));
+            series.put("count", entry.getValue().get());
+            failureSeries.add(series);
+        }
+        json.put("failures", failureSeries);
+
+        JSONArray chainSeries = new JSONArray();
+        for (Map.Entry<List<String>, Histogram> entry: upmergeChains.entrySet()) {
+            JSONObject series = histogramToJSON(entry.getValue());
+            series.put("repository", entry.getKey().get(0));
+            series.put("targetBranch", entry.getKey().get(1));
+            chainSeries.add(series);
+        }
+        json.put("upmergeChainLength", chainSeries);
+        return json;
+    }
+
+    private static JSONObject histogramToJSON(Histogram histogram) {
+        JSONObject json = new JSONObject();
+        json.put("count", histogram.getCount());
+        json.put("sum", histogram.getSum());
+        JSONObject buckets = new JSONObject();
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < bounds.length; i++) {
+            buckets.put(String.valueOf(bounds[i]), counts[i]);
+        }
+        buckets.put("+Inf", counts[bounds.length]);
+        json.put("buckets", buckets);
+        return json;
+    }
+
+    /**
+     * @return String with all series in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP gatekeeper_scm_call_seconds Duration of AdvancedSCMManager calls.\n");
+        out.append("# TYPE gatekeeper_scm_call_seconds histogram\n");
+        for (Map.Entry<List<String>, Histogram> entry: calls.entrySet()) {
+            String labels = labels(new String[] {"operation", "repository", "target_branch"}, entry.getKey());
+            appendHistogram(out, "gatekeeper_scm_call_seconds", labels, entry.getValue());
+        }
+        out.append("# HELP gatekeeper_scm_call_failures_total Failed AdvancedSCMManager calls, by exception.\n");
+        out.append("# TYPE gatekeeper_scm_call_failures_total counter\n");
+        for (Map.Entry<List<String>, AtomicLong> entry: failures.entrySet()) {
+            String labels = labels(
+                    new String[] {"operation", "repository", "target_branch", "exception"}, entry.getKey());
+            out.append("gatekeeper_scm_call_failures_total{").append(labels).append("} ")
+                    .append(entry.getValue().get()).append('\n');
+        }
+        out.append("# HELP gatekeeper_upmerge_chain_length Number of upmerges per upmerge chain.\n");
+        out.append("# TYPE gatekeeper_upmerge_chain_length histogram\n");
+        for (Map.Entry<List<String>, Histogram> entry: upmergeChains.entrySet()) {
+            String labels = labels(new String[] {"repository", "target_branch"}, entry.getKey());
+            appendHistogram(out, "gatekeeper_upmerge_chain_length", labels, entry.getValue());
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i <= bounds.length; i++) {
+            String le = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                    .append(counts[i]).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum()).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String labels(String[] names, List<String> values) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            String value = values.get(i) == null ? "" : values.get(i);
+            labels.append(names[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return labels.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package org.paylogic.jenkins.metrics;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+
+/**
+ * Serves the gatekeeper metrics on the controller:
+ * .../gatekeeper-metrics/json and .../gatekeeper-metrics/prometheus
+ */
+@Extension
+public class GatekeeperMetricsAction implements RootAction {
+
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(GatekeeperMetrics.get().toJSON().toString());
+    }
+
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        rsp.getWriter().print(GatekeeperMetrics.get().toPrometheus());
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Gatekeeper metrics";
+    }
+
+    public String getUrlName() {
+        return "gatekeeper-metrics";
+    }
+}
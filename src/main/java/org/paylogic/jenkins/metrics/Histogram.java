@@ -0,0 +1,70 @@
+package org.paylogic.jenkins.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with fixed bucket bounds, safe to record into from many threads without locking.
+ */
+public class Histogram {
+
+    /**
+     * Bounds of call durations in seconds.
+     */
+    public static final double[] LATENCY_BOUNDS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800};
+
+    private final double[] bounds;
+
+    /**
+     * Count per bucket, the last bucket holds the values above the highest bound.
+     */
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumBits = new AtomicLong(Double.doubleToLongBits(0));
+
+    public Histogram(double[] bounds) {
+        this.bounds = bounds;
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(double value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        while (true) {
+            long bits = sumBits.get();
+            if (sumBits.compareAndSet(bits, Double.doubleToLongBits(Double.longBitsToDouble(bits) + value))) {
+                break;
+            }
+        }
+    }
+
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return cumulative counts per bound, as Prometheus expects them, followed by the total count.
+     */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[bounds.length + 1];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += buckets.get(i);
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getSum() {
+        return Double.longBitsToDouble(sumBits.get());
+    }
+}
@@ -0,0 +1,39 @@
+package org.paylogic.jenkins.metrics;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.advancedscm.InstrumentedSCMManager;
+
+import java.io.IOException;
+
+/**
+ * Records the AdvancedSCMManager calls of one build in the controller-wide metrics.
+ */
+public class MetricsObserver implements InstrumentedSCMManager.Observer {
+
+    private final String repository;
+    private final String targetBranch;
+
+    public MetricsObserver(String repository, String targetBranch) {
+        this.repository = repository;
+        this.targetBranch = targetBranch;
+    }
+
+    /**
+     * Observer labelled with the repository and target branch of given build.
+     */
+    public static MetricsObserver forBuild(AbstractBuild build, BuildListener listener)
+            throws IOException, InterruptedException {
+        EnvVars environment = GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener);
+        return new MetricsObserver(GatekeeperMetrics.repository(build), environment.get("TARGET_BRANCH", ""));
+    }
+
+    public void started(String operation, String detail) {
+    }
+
+    public void finished(String operation, String detail, long nanos, Throwable failure) {
+        GatekeeperMetrics.get().recordCall(operation, repository, targetBranch, nanos, failure);
+    }
+}
@@ -0,0 +1,235 @@
+package org.paylogic.jenkins.timeline;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.RunAction2;
+import lombok.extern.java.Log;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.paylogic.jenkins.advancedscm.InstrumentedSCMManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Timeline of the steps of a gatekeeper build: builders, AdvancedSCMManager calls and the subprocesses they run.
+ * Shown on the build page, and exported as a Chrome trace-event JSON artifact when the build completes,
+ * which can be opened in chrome://tracing.
+ */
+@Log
+public class BuildTimeline implements RunAction2, InstrumentedSCMManager.Observer {
+
+    public static final String TRACE_ARTIFACT = "gatekeeper-trace.json";
+
+    private final List<Span> spans = new ArrayList<Span>();
+
+    /**
+     * Build start in milliseconds, span times are relative to it.
+     */
+    private final long buildStart;
+
+    /**
+     * Open spans per thread, only while the build is running.
+     */
+    private transient Map<Long, LinkedList<Span>> open;
+    private transient long originNanos;
+    private transient long originMicros;
+    private transient Run<?, ?> run;
+
+    BuildTimeline(long buildStart) {
+        this.buildStart = buildStart;
+    }
+
+    /**
+     * Get the timeline of given build, it is added when the build has none yet.
+     */
+    public static BuildTimeline forBuild(AbstractBuild build) {
+        synchronized (build) {
+            BuildTimeline timeline = build.getAction(BuildTimeline.class);
+            if (timeline == null) {
+                timeline = new BuildTimeline(build.getStartTimeInMillis());
+                build.addAction(timeline);
+            }
+            return timeline;
+        }
+    }
+
+    private long now() {
+        if (open == null) {
+            open = new HashMap<Long, LinkedList<Span>>();
+            originNanos = System.nanoTime();
+            originMicros = (System.currentTimeMillis() - buildStart) * 1000;
+        }
+        return originMicros + (System.nanoTime() - originNanos) / 1000;
+    }
+
+    /**
+     * Open a span on the current thread, nested in the innermost open span of the thread.
+     * Every span must be closed with end(Span, Throwable), in a finally block.
+     */
+    public synchronized Span start(String name, String category, String detail) {
+        long time = now();
+        long thread = Thread.currentThread().getId();
+        LinkedList<Span> stack = open.get(thread);
+        if (stack == null) {
+            stack = new LinkedList<Span>();
+            open.put(thread, stack);
+        }
+        Span span = new Span(spans.size(), stack.isEmpty() ? -1 : stack.getLast().getId(),
+                name, category, detail, thread, time);
+        spans.add(span);
+        stack.addLast(span);
+        return span;
+    }
+
+    public synchronized void end(Span span, Throwable failure) {
+        span.end(now(), failure);
+        LinkedList<Span> stack = open.get(span.getThread());
+        if (stack != null) {
+            stack.remove(span);
+        }
+    }
+
+    public void started(String operation, String detail) {
+        start(operation, "scm", detail);
+    }
+
+    public synchronized void finished(String operation, String detail, long nanos, Throwable failure) {
+        LinkedList<Span> stack = open == null ? null : open.get(Thread.currentThread().getId());
+        if (stack != null && !stack.isEmpty() && stack.getLast().getName().equals(operation)) {
+            end(stack.getLast(), failure);
+        }
+    }
+
+    /**
+     * @return List of the spans, in the order they were started.
+     */
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<Span>(spans);
+    }
+
+    /**
+     * @return nesting depth of given span.
+     */
+    public synchronized int getDepth(Span span) {
+        int depth = 0;
+        while (span.getParent() >= 0) {
+            span = spans.get(span.getParent());
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @return end of the last span in microseconds, to scale the timeline view.
+     */
+    public synchronized long getEnd() {
+        long end = 1;
+        for (Span span: spans) {
+            end = Math.max(end, span.getStart() + Math.max(span.getDuration(), 0));
+        }
+        return end;
+    }
+
+    /**
+     * @return JSONObject in the Chrome trace-event format, with one complete event per span.
+     */
+    public synchronized JSONObject toTraceEvents() {
+        JSONArray events = new JSONArray();
+        for (Span span: spans) {
+            JSONObject event = new JSONObject();
+            event.put("name", span.getName());
+            event.put("cat", span.getCategory());
+            event.put("ph", "X");
+            event.put("ts", span.getStart());
+            event.put("dur", Math.max(span.getDuration(), 0));
+            event.put("pid", 1);
+            event.put("tid", span.getThread());
+            JSONObject args = new JSONObject();
+            if (span.getDetail() != null) {
+                args.put("detail", span.getDetail());
+            }
+            if (span.getFailure() != null) {
+                args.put("failure", span.getFailure());
+            }
+            event.put("args", args);
+            events.add(event);
+        }
+        JSONObject trace = new JSONObject();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ms");
+        return trace;
+    }
+
+    public void doTrace(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(toTraceEvents().toString());
+    }
+
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    public String getDisplayName() {
+        return "Gatekeeper timeline";
+    }
+
+    public String getUrlName() {
+        return "gatekeeper-timeline";
+    }
+
+    /**
+     * Writes the trace artifact of builds with a timeline when they complete.
+     */
+    @Extension
+    public static class TraceExporter extends RunListener<AbstractBuild> {
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            BuildTimeline timeline = build.getAction(BuildTimeline.class);
+            if (timeline == null) {
+                return;
+            }
+            File artifacts = build.getArtifactsDir();
+            try {
+                if (!artifacts.isDirectory() && !artifacts.mkdirs()) {
+                    throw new IOException("Could not create " + artifacts);
+                }
+                Writer writer = new OutputStreamWriter(
+                        new FileOutputStream(new File(artifacts, TRACE_ARTIFACT)), "UTF-8");
+                try {
+                    writer.write(timeline.toTraceEvents().toString());
+                } finally {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to write gatekeeper trace of " + build, e);
+            }
+        }
+    }
+}
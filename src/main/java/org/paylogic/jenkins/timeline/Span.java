@@ -0,0 +1,82 @@
+package org.paylogic.jenkins.timeline;
+
+/**
+ * Timed step of a gatekeeper build. Times are in microseconds since the start of the build.
+ */
+public class Span {
+
+    private final int id;
+    private final int parent;
+    private final String name;
+    private final String category;
+    private final String detail;
+    private final long thread;
+    private final long start;
+    private long duration = -1;
+    private String failure;
+
+    Span(int id, int parent, String name, String category, String detail, long thread, long start) {
+        this.id = id;
+        this.parent = parent;
+        this.name = name;
+        this.category = category;
+        this.detail = detail;
+        this.thread = thread;
+        this.start = start;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return id of the enclosing span, or -1 for a top level span.
+     */
+    public int getParent() {
+        return parent;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return category of the span: "builder", "scm" or "process".
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public long getThread() {
+        return thread;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return duration in microseconds, or -1 while the span is still open.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return String with the exception which ended the span, or null.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    void end(long end, Throwable failure) {
+        this.duration = end - start;
+        if (failure != null) {
+            this.failure = failure.toString();
+        }
+    }
+}
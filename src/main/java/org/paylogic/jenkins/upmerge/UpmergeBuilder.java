@@ -12,14 +12,18 @@ import hudson.util.FormValidation;
 import lombok.extern.java.Log;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.plugins.envinject.EnvInjectBuilderContributionAction;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
-import org.paylogic.jenkins.advancedscm.SCMManagerFactory;
+import org.paylogic.jenkins.advancedscm.GatekeeperBuildContext;
+import org.paylogic.jenkins.advancedscm.exceptions.MergeConflictException;
+import org.paylogic.jenkins.metrics.GatekeeperMetrics;
 import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchIndex;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -65,28 +69,50 @@ public class UpmergeBuilder extends Builder {
         l.println("----------------------------------------------------------");
         l.println("--------------------- Now Upmerging ----------------------");
         l.println("----------------------------------------------------------");
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        Span span = timeline.start("UpmergeBuilder", "builder", null);
         try {
             return this.doPerform(build, launcher, listener);
         } catch (Exception e) {
             log.log(Level.SEVERE, "Exception during Gatekeeepring.", e);
             l.append("Exception occured, build aborting...\n");
-            LogMessageSearcher.logMessage(listener, e.toString());
+            LogMessageSearcher.logMessage(build, listener, e.toString());
             return false;
+        } finally {
+            timeline.end(span, null);
         }
     }
 
     private boolean doPerform(AbstractBuild build, Launcher launcher, BuildListener listener) throws Exception {
+        GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
         PrintStream l = listener.getLogger();
-        EnvVars envVars = build.getEnvironment(listener);
-        String featureBranch = envVars.get("FEATURE_BRANCH", "");
-        String targetBranch = envVars.get("TARGET_BRANCH", "");
+        EnvVars envVars = context.getEnvironment(build, listener);
         int usableCaseId = 0;
         String givenCaseId = envVars.get("CASE_ID", "");
         if (givenCaseId != "") {
             usableCaseId = Integer.parseInt(givenCaseId);
         }
         /* Get branch name using AdvancedSCMManager, which we'll need later on as well. */
-        AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+        AdvancedSCMManager amm = context.getManager(build, launcher, listener);
+        List<String> branchesToPush = upmerge(build, amm, listener, envVars, commitUsername, true);
+
+        // pass branches to push to later build actions
+        Map<String, String> vars = new HashMap<String, String>();
+        vars.put("BRANCHES_TO_PUSH", StringUtils.join(branchesToPush, ","));
+        context.contribute(build, vars);
+        return true;
+    }
+
+    /**
+     * Upmerge the target branch of the build into all later releases, in the workspace.
+     * @param pull : pull the target repository first, to also get new releases created during tests
+     * @return List of the branches to push: the target branch, the feature branch when it is a branch,
+     * and the upmerged releases.
+     */
+    public static List<String> upmerge(AbstractBuild build, AdvancedSCMManager amm, BuildListener listener,
+                                       EnvVars envVars, String commitUsername, boolean pull) throws Exception {
+        String featureBranch = envVars.get("FEATURE_BRANCH", "");
+        String targetBranch = envVars.get("TARGET_BRANCH", "");
 
         /* Get a ReleaseBranch compatible object to bump release branch versions with. */
         ReleaseBranch releaseBranch = amm.getReleaseBranch(targetBranch);
@@ -97,40 +123,62 @@ public class UpmergeBuilder extends Builder {
         */
 
         // Pull to also get new releases created during tests.
-        amm.pull(null, targetBranch);
+        if (pull) {
+            amm.pull(null, targetBranch);
+        }
+        List<String> branchList = amm.getBranchNames(true);
+
+        // Find conflicts in the whole chain before the workspace is modified.
+        if (!"false".equals(envVars.get(UpmergePreflight.ENABLE_VARIABLE, ""))) {
+            List<String[]> conflicts = new UpmergePreflight(amm).findConflicts(
+                    UpmergePreflight.getPairs(releaseBranch, branchList));
+            if (!conflicts.isEmpty()) {
+                List<String> names = new ArrayList<String>();
+                for (String[] pair: conflicts) {
+                    names.add(pair[0] + " into " + pair[1]);
+                }
+                throw new MergeConflictException(
+                        "Upmerge pre-flight found conflicts merging " + StringUtils.join(names, ", "));
+            }
+        }
+
         amm.update("");
         amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + releaseBranchName, commitUsername);
 
-        List<String> branchList = amm.getBranchNames(true);
         List<String> branchesToPush = new ArrayList<String>();
         branchesToPush.add(targetBranch);
         if (branchList.contains(featureBranch)) {
             // can be not a branch, but a bookmark
             branchesToPush.add(featureBranch);
         }
+        ReleaseBranchIndex releaseIndex = releaseBranch.index(branchList);
         ReleaseBranch nextBranch = releaseBranch.copy();
-        nextBranch.next(branchList);
+        nextBranch.next(releaseIndex);
         String nextBranchName = nextBranch.getName();
+        BuildTimeline timeline = BuildTimeline.forBuild(build);
+        int upmerges = 0;
         while(nextBranchName != releaseBranchName) {
-            amm.mergeWorkspaceWith(releaseBranchName, nextBranchName);
-            amm.commit("[Jenkins Upmerging] Merged " + releaseBranchName + " into " + nextBranchName,
-                    commitUsername);
-            amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + nextBranchName, commitUsername);
+            Span step = timeline.start("upmerge " + releaseBranchName + " into " + nextBranchName, "builder", null);
+            try {
+                amm.mergeWorkspaceWith(releaseBranchName, nextBranchName);
+                amm.commit("[Jenkins Upmerging] Merged " + releaseBranchName + " into " + nextBranchName,
+                        commitUsername);
+                amm.mergeHeads("[Jenkins Upmerging] Merged heads on " + nextBranchName, commitUsername);
+            } finally {
+                timeline.end(step, null);
+            }
             LogMessageSearcher.logMessage(
-                    listener, "Upmerged " + releaseBranchName + " into " + nextBranchName + ".");
+                    build, listener, "Upmerged " + releaseBranchName + " into " + nextBranchName + ".");
             branchesToPush.add(nextBranchName);
+            upmerges++;
             // Bump releases
-            releaseBranch.next(branchList);
+            releaseBranch.next(releaseIndex);
             releaseBranchName = releaseBranch.getName();
-            nextBranch.next(branchList);
+            nextBranch.next(releaseIndex);
             nextBranchName = nextBranch.getName();
         }
-
-        // pass branches to push to later build actions
-        Map<String, String> vars = new HashMap<String, String>();
-        vars.put("BRANCHES_TO_PUSH", StringUtils.join(branchesToPush, ","));
-        build.addAction(new EnvInjectBuilderContributionAction(vars));
-        return true;
+        GatekeeperMetrics.get().recordUpmergeChain(GatekeeperMetrics.repository(build), targetBranch, upmerges);
+        return branchesToPush;
     }
 
     public DescriptorImpl getDescriptor() {
@@ -0,0 +1,95 @@
+package org.paylogic.jenkins.upmerge;
+
+import lombok.extern.java.Log;
+import org.paylogic.jenkins.advancedscm.AdvancedSCMManager;
+import org.paylogic.jenkins.advancedscm.exceptions.AdvancedSCMException;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranch;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchIndex;
+import org.paylogic.jenkins.upmerge.releasebranch.ReleaseBranchInvalidException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test-merges every (release, next release) pair of the upmerge chain in parallel, before the workspace is modified,
+ * so all conflicting pairs are reported at once.
+ * Pairs are merged as they are now, without the changes which earlier upmerges in the chain will bring in,
+ * so the actual upmerge can still find conflicts which the pre-flight did not report.
+ */
+@Log
+public class UpmergePreflight {
+
+    /**
+     * Build environment variable to disable the pre-flight, set it to "false".
+     */
+    public static final String ENABLE_VARIABLE = "GATEKEEPER_UPMERGE_PREFLIGHT";
+
+    public static final int MAX_THREADS = 4;
+
+    private final AdvancedSCMManager amm;
+
+    public UpmergePreflight(AdvancedSCMManager amm) {
+        this.amm = amm;
+    }
+
+    /**
+     * Compute the pairs of the upmerge chain, starting at given release branch.
+     * @return List of {release, next release} branch name pairs, in upmerge order.
+     */
+    public static List<String[]> getPairs(ReleaseBranch releaseBranch, List<String> branchList)
+            throws ReleaseBranchInvalidException {
+        List<String[]> pairs = new ArrayList<String[]>();
+        ReleaseBranchIndex index = releaseBranch.index(branchList);
+        ReleaseBranch current = releaseBranch.copy();
+        ReleaseBranch next = releaseBranch.copy();
+        next.next(index);
+        while (!next.getName().equals(current.getName())) {
+            pairs.add(new String[] {current.getName(), next.getName()});
+            current.next(index);
+            next.next(index);
+        }
+        return pairs;
+    }
+
+    /**
+     * Test-merge all given pairs.
+     * @return List of the pairs which have conflicts, in upmerge order.
+     */
+    public List<String[]> findConflicts(List<String[]> pairs) throws AdvancedSCMException, InterruptedException {
+        List<String[]> conflicts = new ArrayList<String[]>();
+        if (pairs.isEmpty()) {
+            return conflicts;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(pairs.size(), MAX_THREADS));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (final String[] pair: pairs) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws AdvancedSCMException {
+                        return amm.hasMergeConflicts(pair[0], pair[1]);
+                    }
+                }));
+            }
+            for (int i = 0; i < pairs.size(); i++) {
+                try {
+                    if (results.get(i).get()) {
+                        conflicts.add(pairs.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AdvancedSCMException) {
+                        throw (AdvancedSCMException) e.getCause();
+                    }
+                    throw new AdvancedSCMException(e.getCause().toString());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return conflicts;
+    }
+}
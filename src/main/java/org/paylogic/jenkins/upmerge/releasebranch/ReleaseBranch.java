@@ -34,6 +34,23 @@ public abstract class ReleaseBranch implements ExtensionPoint {
      */
     public abstract void next(List<String> branches);
 
+    /**
+     * Sets the object to the next release which exists in the index.
+     * Override together with index(List) to look up the next release without scanning the branch list.
+     * Does not return representation of release.
+     */
+    public void next(ReleaseBranchIndex index) {
+        next(index.getBranches());
+    }
+
+    /**
+     * Create an index of given branches, to pass to next(ReleaseBranchIndex) for every step of an upmerge chain.
+     * @return ReleaseBranchIndex of the release branches in given list.
+     */
+    public ReleaseBranchIndex index(List<String> branches) {
+        return new ReleaseBranchIndex(branches, null);
+    }
+
     /**
      * Returns the current branch name as String
      * Output need to be able to be consumed by constructor of ReleaseBranch.
@@ -1,15 +1,12 @@
 package org.paylogic.jenkins.upmerge.releasebranch;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Predicate;
-
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class ReleaseBranchImpl extends ReleaseBranch {
     private static String RELEASEBRANCH_REGEX = "r\\d{4}";  // TODO: parametrize correctly
+    private static final Pattern RELEASEBRANCH_PATTERN = Pattern.compile(RELEASEBRANCH_REGEX);
     private final DecimalFormat df;
 
     private int year;
@@ -31,7 +28,7 @@ public class ReleaseBranchImpl extends ReleaseBranch {
             this.tip = true;
         }
         else {
-            if (!startBranch.matches(RELEASEBRANCH_REGEX)) {
+            if (!RELEASEBRANCH_PATTERN.matcher(startBranch).matches()) {
                 throw new ReleaseBranchInvalidException("Release branch " + startBranch + " is invalid.");
             }
 
@@ -63,21 +60,38 @@ public class ReleaseBranchImpl extends ReleaseBranch {
      */
     @Override
     public void next(List<String> branches) {
-        branches = new ArrayList<String>(branches);
-        CollectionUtils.filter(branches, new Predicate(){
-            public boolean evaluate(Object input) {
-                return ((String)input).matches(RELEASEBRANCH_REGEX);
-            }
-        });
-        String maxBranch = Collections.max(branches);
-        this.next();
-        while (!branches.contains(this.getName()) && !this.tip) {
-            this.next();
-            if (this.getName().compareTo(maxBranch) > 0) {
-                this.tip = true;
-                break;
-            }
+        this.next(this.index(branches));
+    }
+
+    /**
+     * Sets the object to the next release in the index, or to the default branch when there is none.
+     * Does not return representation of release.
+     */
+    @Override
+    public void next(ReleaseBranchIndex index) {
+        if (this.tip) {
+            return;
+        }
+        String next = index.higher(this.getName());
+        // Skip names which are not a week, stepping through the weeks never reaches them.
+        while (next != null && !isValidWeek(Integer.parseInt(next.substring(3, 5)))) {
+            next = index.higher(next);
         }
+        if (next == null) {
+            this.tip = true;
+            return;
+        }
+        this.year = Integer.parseInt(next.substring(1, 3));
+        this.week = Integer.parseInt(next.substring(3, 5));
+    }
+
+    @Override
+    public ReleaseBranchIndex index(List<String> branches) {
+        return new ReleaseBranchIndex(branches, RELEASEBRANCH_PATTERN);
+    }
+
+    private static boolean isValidWeek(int week) {
+        return week >= 1 && week <= 52;
     }
 
     /**
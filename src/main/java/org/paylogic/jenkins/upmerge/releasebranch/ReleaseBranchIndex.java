@@ -0,0 +1,50 @@
+package org.paylogic.jenkins.upmerge.releasebranch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Sorted index of the release branches in a branch list.
+ * Build it once per branch list, and use it to find the next existing release in O(log n).
+ */
+public class ReleaseBranchIndex {
+
+    private final List<String> branches;
+    private final NavigableSet<String> releases = new TreeSet<String>();
+
+    /**
+     * @param branches : all branch names
+     * @param pattern : Pattern matching release branch names, null to index all branches
+     */
+    public ReleaseBranchIndex(Collection<String> branches, Pattern pattern) {
+        this.branches = Collections.unmodifiableList(new ArrayList<String>(branches));
+        for (String branch: branches) {
+            if (pattern == null || pattern.matcher(branch).matches()) {
+                releases.add(branch);
+            }
+        }
+    }
+
+    /**
+     * @return List of all indexed branch names, including those that are not release branches.
+     */
+    public List<String> getBranches() {
+        return branches;
+    }
+
+    /**
+     * @return String with the first release after given release, or null when there is none.
+     */
+    public String higher(String release) {
+        return releases.higher(release);
+    }
+
+    public boolean contains(String release) {
+        return releases.contains(release);
+    }
+}
@@ -0,0 +1,50 @@
+package org.paylogic.jenkins;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogScannerTest {
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testMatchesAnyKeyword() throws Exception {
+        String log = "start\r\n[BuildReportMessage] merged\nabort: push creates new remote head\n"
+                + "[BuildReport\nno newline at end ERROR: x";
+        List<String> lines = new LogScanner("[BuildReportMessage]", "abort:", "ERROR:")
+                .scan(new ByteArrayInputStream(log.getBytes("UTF-8")));
+        assertEquals(Arrays.asList(
+                "[BuildReportMessage] merged", "abort: push creates new remote head", "no newline at end ERROR: x"),
+                lines);
+    }
+
+    @Test
+    public void testLinesAcrossBuffersAndGzip() throws Exception {
+        // Lines longer than the read buffer, with the keyword behind the buffer boundary.
+        StringBuilder longLine = new StringBuilder();
+        while (longLine.length() < LogScanner.BUFFER_SIZE + 10) {
+            longLine.append("xyz");
+        }
+        List<String> expected = new ArrayList<String>();
+        File log = tmp.newFile("log.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(log));
+        for (int i = 0; i < 3; i++) {
+            String line = longLine + " [BuildReportMessage] é " + i;
+            expected.add(line);
+            out.write((line + "\n" + longLine + "\n").getBytes("UTF-8"));
+        }
+        out.close();
+        assertEquals(expected, new LogScanner("[BuildReportMessage]").scan(log));
+    }
+}
@@ -1,5 +1,6 @@
 package org.paylogic.jenkins.advancedscm;
 
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
 import hudson.plugins.git.BranchSpec;
@@ -8,6 +9,7 @@ import hudson.plugins.git.UserRemoteConfig;
 import hudson.plugins.git.extensions.GitSCMExtension;
 import hudson.plugins.git.extensions.impl.RelativeTargetDirectory;
 import hudson.scm.SCM;
+import org.jenkinsci.plugins.gitclient.CliGitAPIImpl;
 import org.jenkinsci.plugins.gitclient.GitClient;
 import org.jenkinsci.plugins.multiplescms.MultiSCM;
 import org.junit.Before;
@@ -16,11 +18,17 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.TestBuilder;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
+import org.paylogic.jenkins.upmerge.UpmergePreflight;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 
 public class BasicGitTest {
@@ -76,6 +84,265 @@ public class BasicGitTest {
         g.buildAndCheck(p, "c3");
     }
 
+    @Test
+    public void testMergeConflictPreflightJGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("GATEKEEPER_GIT_IMPL", "jgit"));
+
+        // r1336 and c3 both change the same file, c4 changes another one.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "init");
+        client.checkout("master", "r1336");
+        g.touchAndCommit(repo, "init");
+        client.checkout("master", "c3");
+        g.touchAndCommit(repo, "init");
+        g.touchAndCommit(repo, "init");
+        client.checkout("master", "c4");
+        g.touchAndCommit(repo, "c4");
+        client.checkout().ref("master").execute();
+
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                try {
+                    AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+                    return amm.hasMergeConflicts("c3", "r1336") && !amm.hasMergeConflicts("c4", "r1336");
+                } catch (Exception e) {
+                    e.printStackTrace(listener.getLogger());
+                    return false;
+                }
+            }
+        });
+
+        g.buildAndCheck(p, "init", new ParametersAction(parameters));
+    }
+
+    @Test
+    public void testUpmergePreflightGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        // Release chain r1336, r1338, r1340, where only r1338 and r1340 change release.txt differently.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "release.txt");
+        client.checkout("master", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("r1336", "r1338");
+        g.touchAndCommit(repo, "r1338");
+        client.checkout("r1338", "r1340");
+        g.touchAndCommit(repo, "r1340");
+        new FilePath(repo).child("release.txt").write("1340\n", "UTF-8");
+        g.touchAndCommit(repo, "release.txt");
+        client.checkout().ref("r1338").execute();
+        new FilePath(repo).child("release.txt").write("1338\n", "UTF-8");
+        g.touchAndCommit(repo, "release.txt");
+        client.checkout().ref("master").execute();
+
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                try {
+                    AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+                    List<String[]> conflicts = new UpmergePreflight(amm).findConflicts(UpmergePreflight.getPairs(
+                            amm.getReleaseBranch("r1336"), amm.getBranchNames(true)));
+                    return conflicts.size() == 1
+                            && Arrays.equals(new String[] {"r1338", "r1340"}, conflicts.get(0));
+                } catch (Exception e) {
+                    e.printStackTrace(listener.getLogger());
+                    return false;
+                }
+            }
+        });
+
+        g.buildAndCheck(p, "release.txt");
+    }
+
+    @Test
+    public void testMergeRevisionResolutionGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        // Branches x and y, a lightweight tag y and an annotated tag z on other commits.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        CliGitAPIImpl cli = (CliGitAPIImpl) client;
+        cli.launchCommand("config", "user.name", "dummy");
+        cli.launchCommand("config", "user.email", "dummy@foo.bar");
+        g.touchAndCommit(repo, "init");
+        client.checkout("master", "x");
+        g.touchAndCommit(repo, "origin-x");
+        client.checkout("master", "y");
+        g.touchAndCommit(repo, "origin-y");
+        client.checkout("master", "tags");
+        g.touchAndCommit(repo, "tag-y");
+        cli.launchCommand("tag", "y");
+        g.touchAndCommit(repo, "tag-z");
+        cli.launchCommand("tag", "-a", "z", "-m", "z");
+        String z = client.revParse("z").name();
+        client.checkout().ref("master").execute();
+
+        // A fork with another branch x.
+        GitClient fork = g.gitClient(repo2);
+        ((CliGitAPIImpl) fork).launchCommand("clone", repo.getPath(), ".");
+        fork.checkout("master", "x");
+        g.touchAndCommit(repo2, "feature-x");
+
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                try {
+                    AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+                    FilePath workspace = build.getWorkspace();
+                    amm.update("master");
+
+                    // origin/y wins over the tag y.
+                    amm.mergeWorkspaceWith("y", null);
+                    amm.commit("merge y", "test <testuser@example.com>");
+                    if (!workspace.child("origin-y").exists() || workspace.child("tag-y").exists()) {
+                        listener.getLogger().println("y did not resolve to origin/y");
+                        return false;
+                    }
+
+                    // The annotated tag z resolves to its commit.
+                    amm.mergeWorkspaceWith("z", null);
+                    amm.commit("merge z", "test <testuser@example.com>");
+                    if (!workspace.child("tag-z").exists()) {
+                        listener.getLogger().println("z did not resolve to its commit");
+                        return false;
+                    }
+
+                    // feature/x wins over origin/x.
+                    amm.pull(repo2.getPath(), "x");
+                    amm.mergeWorkspaceWith("x", null);
+                    amm.commit("merge x", "test <testuser@example.com>");
+                    if (!workspace.child("feature-x").exists() || workspace.child("origin-x").exists()) {
+                        listener.getLogger().println("x did not resolve to feature/x");
+                        return false;
+                    }
+
+                    // A branch which the remote got after the refs were listed resolves after the next fetch.
+                    g.gitClient(repo).checkout("master", "w");
+                    g.touchAndCommit(repo, "origin-w");
+                    amm.pull();
+                    amm.mergeWorkspaceWith("w", null);
+                    amm.commit("merge w", "test <testuser@example.com>");
+                    return workspace.child("origin-w").exists();
+                } catch (Exception e) {
+                    e.printStackTrace(listener.getLogger());
+                    return false;
+                }
+            }
+        });
+
+        g.buildAndCheck(p, "origin-w");
+
+        // Not the tag object itself was merged.
+        boolean mergedCommit = false;
+        for (Span span: p.getLastBuild().getAction(BuildTimeline.class).getSpans()) {
+            if (span.getName().equals("git merge") && span.getDetail().endsWith("--no-ff " + z)) {
+                mergedCommit = true;
+            }
+        }
+        assert mergedCommit;
+    }
+
+    @Test
+    public void testBranchSnapshotGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        // Init repo with release and feature branch, the feature branch stays checked out.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "init");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "c3");
+        g.touchAndCommit(repo, "c3");
+
+        // Every step lists the branches first, then changes them, and checks the snapshot against a new listing.
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                try {
+                    AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+                    String user = "test <testuser@example.com>";
+
+                    assert sameBranches(amm, build, launcher, listener);
+                    amm.update("r1336");
+                    amm.mergeWorkspaceWith("c3", null);
+                    amm.commit("merge c3", user);
+                    assert sameBranches(amm, build, launcher, listener);
+
+                    // The new release branch is listed once it is pushed.
+                    amm.createReleaseBranch("r1338", null, null, "r1338", user);
+                    assert sameBranches(amm, build, launcher, listener);
+                    amm.push("r1338");
+                    assert sameBranches(amm, build, launcher, listener);
+                    assert amm.getBranchNames(false).contains("r1338");
+
+                    // A branch which the remote got after the branches were listed.
+                    g.gitClient(repo).checkout("r1336", "r1340");
+                    g.touchAndCommit(repo, "r1340");
+                    g.gitClient(repo).checkout().ref("c3").execute();
+                    amm.pull();
+                    assert sameBranches(amm, build, launcher, listener);
+                    assert amm.getBranchNames(false).contains("r1340");
+                    return true;
+                } catch (Exception e) {
+                    e.printStackTrace(listener.getLogger());
+                    return false;
+                }
+            }
+        });
+
+        g.buildAndCheck(p, "c3");
+    }
+
+    /**
+     * @return true when the branch snapshot of given manager has the same branches and heads as a new manager.
+     */
+    private static boolean sameBranches(AdvancedSCMManager amm, AbstractBuild<?, ?> build, Launcher launcher,
+                                        BuildListener listener) throws Exception {
+        AdvancedSCMManager fresh = SCMManagerFactory.getManager(build, launcher, listener);
+        for (boolean all: new boolean[] {false, true}) {
+            Set<String> cached = new TreeSet<String>(amm.getBranchNames(all));
+            Set<String> listed = new TreeSet<String>(fresh.getBranchNames(all));
+            for (Branch branch: amm.getBranches(all)) {
+                cached.add(branch.getBranchName() + " " + branch.getHash());
+            }
+            for (Branch branch: fresh.getBranches(all)) {
+                listed.add(branch.getBranchName() + " " + branch.getHash());
+            }
+            if (!cached.equals(listed)) {
+                listener.getLogger().println("Snapshot has " + cached + " instead of " + listed);
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Test
     public void testBasicMultiSCMMerge() throws Exception {
         FreeStyleProject p = j.createFreeStyleProject();
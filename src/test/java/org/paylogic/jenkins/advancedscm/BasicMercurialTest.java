@@ -15,6 +15,8 @@ import org.jvnet.hudson.test.TestBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
 
 
 public class BasicMercurialTest {
@@ -64,6 +66,84 @@ public class BasicMercurialTest {
         m.buildAndCheck(p, "c3");
     }
 
+    @Test
+    public void testBranchSnapshotMercurial() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new MercurialSCM(null, repo.getPath(), "tip", null, null, null, false));
+
+        // Init repo with release and feature branch.
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "base");
+        m.hg(repo, "branch", "r1336");
+        m.touchAndCommit(repo, "r1336");
+        m.hg(repo, "branch", "c3");
+        m.touchAndCommit(repo, "c3");
+
+        // Every step lists the branches first, then changes them, and checks the snapshot against a new listing.
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                try {
+                    AdvancedSCMManager amm = SCMManagerFactory.getManager(build, launcher, listener);
+                    String user = "test <testuser@example.com>";
+
+                    // A commit moves the head of r1336.
+                    assert sameBranches(amm, build, launcher, listener);
+                    amm.update("r1336");
+                    amm.mergeWorkspaceWith("c3", null);
+                    amm.commit("merge c3", user);
+                    assert sameBranches(amm, build, launcher, listener);
+
+                    amm.closeBranch("c3", "close c3", user);
+                    assert sameBranches(amm, build, launcher, listener);
+                    assert !amm.getBranchNames(false).contains("c3");
+                    assert amm.getBranchNames(true).contains("c3");
+
+                    amm.createReleaseBranch("r1338", null, null, "r1338", user);
+                    assert sameBranches(amm, build, launcher, listener);
+                    assert amm.getBranchNames(false).contains("r1338");
+
+                    // A branch which the remote got after the branches were listed.
+                    m.hg(repo, "update", "r1336");
+                    m.hg(repo, "branch", "r1340");
+                    m.touchAndCommit(repo, "r1340");
+                    amm.pull();
+                    assert sameBranches(amm, build, launcher, listener);
+                    assert amm.getBranchNames(false).contains("r1340");
+                    return true;
+                } catch (Exception e) {
+                    e.printStackTrace(listener.getLogger());
+                    return false;
+                }
+            }
+        });
+
+        m.buildAndCheck(p, "c3");
+    }
+
+    /**
+     * @return true when the branch snapshot of given manager has the same branches and heads as a new manager.
+     */
+    private static boolean sameBranches(AdvancedSCMManager amm, AbstractBuild<?, ?> build, Launcher launcher,
+                                        BuildListener listener) throws Exception {
+        AdvancedSCMManager fresh = SCMManagerFactory.getManager(build, launcher, listener);
+        for (boolean all: new boolean[] {false, true}) {
+            Set<String> cached = new TreeSet<String>(amm.getBranchNames(all));
+            Set<String> listed = new TreeSet<String>(fresh.getBranchNames(all));
+            for (Branch branch: amm.getBranches(all)) {
+                cached.add(branch.getBranchName() + " " + branch.getHash());
+            }
+            for (Branch branch: fresh.getBranches(all)) {
+                listed.add(branch.getBranchName() + " " + branch.getHash());
+            }
+            if (!cached.equals(listed)) {
+                listener.getLogger().println("Snapshot has " + cached + " instead of " + listed);
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Test
     public void testBasicMultiSCMMerge() throws Exception {
         FreeStyleProject p = j.createFreeStyleProject();
@@ -0,0 +1,129 @@
+package org.paylogic.jenkins.advancedscm;
+
+import hudson.Launcher;
+import hudson.model.*;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.UserRemoteConfig;
+import org.jenkinsci.plugins.gitclient.GitClient;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class GatekeeperBuildContextTest {
+    @Rule public JenkinsRule j = new JenkinsRule();
+    @Rule public GitRule g = new GitRule(j);
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+    private File repo;
+
+    /**
+     * Managers which the build steps got from the context, in the order of the steps.
+     */
+    private final List<AdvancedSCMManager> managers = new ArrayList<AdvancedSCMManager>();
+
+    @Before
+    public void setUp() throws Exception {
+        repo = tmp.getRoot();
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "init");
+    }
+
+    private FreeStyleProject createProject() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+        return p;
+    }
+
+    /**
+     * Build step which records the manager of the build context.
+     */
+    private class ManagerRecorder extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            try {
+                managers.add(GatekeeperBuildContext.forBuild(build).getManager(build, launcher, listener));
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace(listener.getLogger());
+                return false;
+            }
+        }
+    }
+
+    @Test
+    public void testManagerIsCachedPerBuild() throws Exception {
+        FreeStyleProject p = createProject();
+        p.getBuildersList().add(new ManagerRecorder());
+        p.getBuildersList().add(new ManagerRecorder());
+
+        g.buildAndCheck(p, "init");
+        g.buildAndCheck(p, "init");
+
+        assertEquals(4, managers.size());
+        assertSame(managers.get(0), managers.get(1));
+        assertSame(managers.get(2), managers.get(3));
+        assertNotSame(managers.get(0), managers.get(2));
+    }
+
+    @Test
+    public void testContributedVariablesAreVisibleToLaterSteps() throws Exception {
+        FreeStyleProject p = createProject();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                GatekeeperBuildContext context = GatekeeperBuildContext.forBuild(build);
+                // Cache the environment before contributing to it.
+                context.getEnvironment(build, listener);
+                Map<String, String> vars = new HashMap<String, String>();
+                vars.put("BRANCHES_TO_PUSH", "r1336,r1338");
+                context.contribute(build, vars);
+                return true;
+            }
+        });
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                String cached = GatekeeperBuildContext.forBuild(build).getEnvironment(build, listener)
+                        .get("BRANCHES_TO_PUSH");
+                String computed = build.getEnvironment(listener).get("BRANCHES_TO_PUSH");
+                return "r1336,r1338".equals(cached) && "r1336,r1338".equals(computed);
+            }
+        });
+
+        g.buildAndCheck(p, "init");
+    }
+
+    @Test
+    public void testManagerIsReleasedWhenBuildCompletes() throws Exception {
+        FreeStyleProject p = createProject();
+        p.getBuildersList().add(new ManagerRecorder());
+
+        g.buildAndCheck(p, "init");
+
+        // The context stays with the build, a manager asked for after completion is a new one.
+        FreeStyleBuild b = p.getLastBuild();
+        GatekeeperBuildContext context = b.getAction(GatekeeperBuildContext.class);
+        assert context != null;
+        BuildListener listener = new StreamBuildListener(System.out);
+        assertNotSame(managers.get(0), context.getManager(b, j.createLocalLauncher(), listener));
+    }
+}
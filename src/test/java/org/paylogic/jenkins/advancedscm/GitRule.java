@@ -81,10 +81,10 @@ public final class GitRule extends ExternalResource {
             if (!toTouch.exists()) {
                 toTouch.getParent().mkdirs();
                 toTouch.touch(0);
-                client.add(name);
             } else {
                 toTouch.write(toTouch.readToString() + "extra line\n", "UTF-8");
             }
+            client.add(name);
         }
         client.setAuthor("dummy", "dummy@foo.bar");
         client.setCommitter("dummy", "dummy@foo.bar");
@@ -0,0 +1,75 @@
+package org.paylogic.jenkins.advancedscm.backends;
+
+import org.junit.Test;
+import org.paylogic.jenkins.advancedscm.Branch;
+import org.paylogic.jenkins.advancedscm.backends.helpers.JsonStreamReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MercurialBackendTest {
+
+    private static List<Branch> parseBranches(String json) throws IOException {
+        return MercurialBackend.parseBranches(new JsonStreamReader(new StringReader(json)));
+    }
+
+    @Test
+    public void testParseBranches() throws Exception {
+        // Output of 'hg branches -Tjson', with a branch name that needs escapes.
+        List<Branch> branches = parseBranches("[\n"
+                + " {\n  \"active\": true,\n  \"branch\": \"r1336\",\n  \"closed\": false,\n"
+                + "  \"current\": false,\n  \"node\": \"a1b2c3d4e5f60718293a4b5c6d7e8f9012345678\",\n  \"rev\": 4\n },\n"
+                + " {\n  \"active\": false,\n  \"branch\": \"caf\\u00e9 \\\"quoted\\\"\",\n  \"closed\": true,\n"
+                + "  \"current\": false,\n  \"node\": \"0000000000000000000000000000000000000001\",\n  \"rev\": 0\n }\n"
+                + "]\n");
+
+        assertEquals(2, branches.size());
+        assertEquals("r1336", branches.get(0).getBranchName());
+        assertEquals(Integer.valueOf(4), branches.get(0).getRevision());
+        assertEquals("a1b2c3d4e5f60718293a4b5c6d7e8f9012345678", branches.get(0).getHash());
+        assertEquals("caf\u00e9 \"quoted\"", branches.get(1).getBranchName());
+        assertEquals(Integer.valueOf(0), branches.get(1).getRevision());
+    }
+
+    @Test
+    public void testParseLogEntries() throws Exception {
+        // Output of 'hg log -Tjson', with nested members which are skipped.
+        List<Branch> heads = parseBranches("[{\"bookmarks\": [\"feature\"], \"branch\": \"default\","
+                + " \"date\": [1400000000, -7200], \"desc\": \"Merged r1336 into default\", \"node\": \"abc\","
+                + " \"parents\": [\"def\", \"012\"], \"phase\": \"public\", \"rev\": 7, \"tags\": [\"tip\"]}]");
+
+        assertEquals(1, heads.size());
+        assertEquals("default", heads.get(0).getBranchName());
+        assertEquals(Integer.valueOf(7), heads.get(0).getRevision());
+        assertEquals("abc", heads.get(0).getHash());
+    }
+
+    @Test
+    public void testParseNoBranches() throws Exception {
+        // hg prints nothing at all when a revset matches nothing.
+        assertEquals(0, parseBranches("").size());
+        assertEquals(0, parseBranches("[\n]\n").size());
+    }
+
+    @Test
+    public void testParseInvalidBranches() throws Exception {
+        String[] outputs = {
+                "[{\"branch\": \"default\", \"rev\": 1",
+                "[{\"branch\": \"def",
+                "[{\"rev\": 1, \"node\": \"abc\"}]",
+                "[{\"branch\": \"default\", \"rev\": \"1\"}]",
+                "** unknown exception encountered\n"};
+        for (String output: outputs) {
+            try {
+                parseBranches(output);
+                fail("No error for " + output);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JsonStreamReaderTest {
+
+    private static JsonStreamReader reader(String json) {
+        return new JsonStreamReader(new StringReader(json));
+    }
+
+    @Test
+    public void testStringEscapes() throws Exception {
+        JsonStreamReader json = reader("[\"a\\\"b\\\\c\\/d\", \"\\b\\f\\n\\r\\t\", \"caf\\u00e9 \\u20AC\"]");
+        assert json.beginArray();
+        assert json.hasNext();
+        assertEquals("a\"b\\c/d", json.nextString());
+        assert json.hasNext();
+        assertEquals("\b\f\n\r\t", json.nextString());
+        assert json.hasNext();
+        assertEquals("caf\u00e9 \u20ac", json.nextString());
+        assert !json.hasNext();
+        json.endArray();
+    }
+
+    @Test
+    public void testLiterals() throws Exception {
+        JsonStreamReader json = reader("{\"rev\": -1, \"closed\": true, \"active\":false}");
+        json.beginObject();
+        assert json.hasNext();
+        assertEquals("rev", json.nextName());
+        assertEquals(-1, json.nextLong());
+        assert json.hasNext();
+        assertEquals("closed", json.nextName());
+        assert json.nextBoolean();
+        assert json.hasNext();
+        assertEquals("active", json.nextName());
+        assert !json.nextBoolean();
+        assert !json.hasNext();
+        json.endObject();
+    }
+
+    @Test
+    public void testSkipNestedValues() throws Exception {
+        JsonStreamReader json = reader("[{\"bookmarks\": [\"a\", {\"b\": [1, [], {}]}], \"phase\": null,"
+                + " \"desc\": \"]}\", \"node\": \"abc\"}]");
+        assert json.beginArray();
+        json.beginObject();
+        assert json.hasNext();
+        assertEquals("bookmarks", json.nextName());
+        json.skipValue();
+        assert json.hasNext();
+        assertEquals("phase", json.nextName());
+        json.skipValue();
+        assert json.hasNext();
+        assertEquals("desc", json.nextName());
+        json.skipValue();
+        assert json.hasNext();
+        assertEquals("node", json.nextName());
+        assertEquals("abc", json.nextString());
+        assert !json.hasNext();
+        json.endObject();
+        assert !json.hasNext();
+        json.endArray();
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        assert !reader("").beginArray();
+        assert !reader(" \n").beginArray();
+
+        JsonStreamReader json = reader("[\n]\n");
+        assert json.beginArray();
+        assert !json.hasNext();
+        json.endArray();
+    }
+
+    @Test
+    public void testTruncatedInput() throws Exception {
+        assertFails("[{\"branch\": \"defau");
+        assertFails("[{\"desc\": \"caf\\u00");
+        assertFails("[{\"branch\": \"default\"");
+        assertFails("[{\"rev\": ");
+    }
+
+    @Test
+    public void testGarbageInput() throws Exception {
+        assertFails("abort: repository not found!\n");
+        assertFails("[{\"rev\": twelve}]");
+        assertFails("[{\"closed\": 1}]");
+        assertFails("[{\"desc\": \"\\x\"}]");
+        assertFails("[{\"branch\" \"default\"}]");
+    }
+
+    /**
+     * Read given input as a list of objects, like the output of 'hg branches -Tjson', which has to fail.
+     */
+    private static void assertFails(String input) throws Exception {
+        JsonStreamReader json = reader(input);
+        try {
+            json.beginArray();
+            while (json.hasNext()) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    assert json.hasNext();
+                    String name = json.nextName();
+                    if ("rev".equals(name)) {
+                        json.nextLong();
+                    } else if ("closed".equals(name)) {
+                        json.nextBoolean();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+            }
+            json.endArray();
+        } catch (IOException e) {
+            return;
+        }
+        fail("No error for " + input);
+    }
+}
@@ -0,0 +1,44 @@
+package org.paylogic.jenkins.advancedscm.backends.helpers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScanningOutputStreamTest {
+
+    @Test
+    public void testKeepsMatchingLines() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ScanningOutputStream stream = new ScanningOutputStream(new PrintStream(log), "unresolved");
+        stream.write("merging a\nwarning: conflicts while merging a!\n1 files unresolved".getBytes("UTF-8"));
+        stream.close();
+
+        assertEquals("merging a\nwarning: conflicts while merging a!\n1 files unresolved", log.toString("UTF-8"));
+        assertEquals("1 files unresolved\n", stream.getMatched());
+    }
+
+    @Test
+    public void testKeepsLastLines() throws Exception {
+        ScanningOutputStream stream = new ScanningOutputStream(
+                new PrintStream(new ByteArrayOutputStream()), ScanningOutputStream.ALL_LINES);
+        StringBuilder line = new StringBuilder();
+        while (line.length() < 1000) {
+            line.append("remote: progress ");
+        }
+        line.append('\n');
+        for (int i = 0; i < 2 * ScanningOutputStream.MAX_MATCHED_LENGTH / line.length(); i++) {
+            stream.write(line.toString().getBytes("UTF-8"));
+        }
+        stream.write("abort: push creates new remote head 0123456789ab!\n".getBytes("UTF-8"));
+        stream.close();
+
+        // The abort comes last, it is kept instead of the first lines.
+        String matched = stream.getMatched();
+        assert matched.startsWith("(earlier matching lines were left out)\n" + line);
+        assert matched.endsWith(line + "abort: push creates new remote head 0123456789ab!\n");
+        assert matched.length() <= ScanningOutputStream.MAX_MATCHED_LENGTH + line.length();
+    }
+}
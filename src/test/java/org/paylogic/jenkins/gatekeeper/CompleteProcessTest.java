@@ -1,13 +1,22 @@
 package org.paylogic.jenkins.gatekeeper;
 
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
+import hudson.model.Result;
 import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.git.BranchSpec;
 import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.UserRemoteConfig;
 import hudson.plugins.mercurial.MercurialSCM;
+import hudson.tasks.Builder;
 import lombok.extern.java.Log;
 import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.gitclient.GitClient;
@@ -16,14 +25,21 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.paylogic.jenkins.LogMessageSearcher;
 import org.paylogic.jenkins.advancedscm.GitRule;
 import org.paylogic.jenkins.advancedscm.MercurialRule;
+import org.paylogic.jenkins.advancedscm.backends.helpers.MirrorCache;
+import org.paylogic.jenkins.timeline.BuildTimeline;
+import org.paylogic.jenkins.timeline.Span;
 import org.paylogic.jenkins.upmerge.UpmergeBuilder;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
@@ -48,6 +64,113 @@ public class CompleteProcessTest {
 
     @Test
     public void testGatekeeperingAndUpmergingMercurial() throws Exception {
+        gatekeeperingAndUpmergingMercurial();
+    }
+
+    @Test
+    public void testGatekeeperingAndUpmergingMercurialCommandServer() throws Exception {
+        FreeStyleBuild build = gatekeeperingAndUpmergingMercurial(
+                new StringParameterValue("GATEKEEPER_HG_CMDSERVER", "true"));
+
+        // AdvancedHgExe falls back to hg processes silently, so check the commands went to the server.
+        @SuppressWarnings("deprecation")
+        String log = build.getLog();
+        assert log.contains("[hg cmdserver] ");
+        assert !log.contains("Could not start Mercurial command server");
+    }
+
+    @Test
+    public void testGatekeeperingAndUpmergingMercurialShare() throws Exception {
+        FreeStyleBuild build = gatekeeperingAndUpmergingMercurial(
+                new StringParameterValue("GATEKEEPER_HG_SHARE", "true"));
+
+        j.assertLogContains("Created workspace sharing the Mercurial store", build);
+        assertSharedStore(build);
+    }
+
+    @Test
+    public void testGatekeeperingFromDifferentRepoMercurialShareIsolation() throws Exception {
+        StringParameterValue share = new StringParameterValue("GATEKEEPER_HG_SHARE", "true");
+
+        // Init repo with 2 releases, and a fork with a commit on the first release below its feature branch.
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "base");
+        m.hg(repo, "branch", "r1336");
+        m.touchAndCommit(repo, "r1336");
+        m.hg(repo, "branch", "r1338");
+        m.touchAndCommit(repo, "r1338");
+        m.hg(repo2, "clone", repo.getAbsolutePath(), ".");
+        m.hg(repo2, "update", "r1336");
+        m.touchAndCommit(repo2, "fork");
+        m.hg(repo2, "branch", "c3");
+        m.touchAndCommit(repo2, "c3");
+
+        // One build merges the feature branch of the fork without pushing it.
+        FreeStyleProject forkProject = j.createFreeStyleProject();
+        forkProject.setScm(new MercurialSCM(null, repo.getPath(), "tip", null, null, null, false));
+        forkProject.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        forkProject.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        parameters.add(new StringParameterValue("APPROVED_REVISION", m.getLastChangesetId(repo2)));
+        parameters.add(new StringParameterValue("REPO_URL", repo2.getAbsolutePath()));
+        parameters.add(share);
+        m.buildAndCheck(forkProject, "c3", new ParametersAction(parameters));
+
+        // Another build with the same store gatekeepers a feature branch of the repo itself.
+        m.hg(repo, "update", "r1336");
+        m.hg(repo, "branch", "c4");
+        m.touchAndCommit(repo, "c4");
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new MercurialSCM(null, repo.getPath(), "tip", null, null, null, false));
+        p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        p.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
+        p.getBuildersList().add(new UpmergeBuilder("JenkinsTestRunner <test@runner.com>"));
+        p.getBuildersList().add(new GatekeeperPush());
+        parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c4"));
+        parameters.add(share);
+        m.buildAndCheck(p, "c4", new ParametersAction(parameters));
+
+        assertEquals(assertSharedStore(forkProject.getLastBuild()), assertSharedStore(p.getLastBuild()));
+
+        // The changesets pulled from the fork by the first build were not used, nor pushed, by the second one.
+        m.hg(repo, "update", "r1336");
+        assert new File(repo, "c4").exists();
+        assert !new File(repo, "fork").exists();
+        assert !new File(repo, "c3").exists();
+        m.hg(repo, "update", "r1338");
+        assert new File(repo, "c4").exists();
+        assert !new File(repo, "fork").exists();
+    }
+
+    /**
+     * Check that the workspace of given build uses a store of the node.
+     * @return String with the path of the store.
+     */
+    private String assertSharedStore(FreeStyleBuild build) throws Exception {
+        FilePath sharedPath = build.getWorkspace().child(".hg/sharedpath");
+        assert sharedPath.exists();
+        String store = sharedPath.readToString().trim();
+        assert new File(store).getCanonicalPath().startsWith(
+                new File(j.jenkins.getRootDir(), "gatekeeper-hg-shares").getCanonicalPath());
+        return store;
+    }
+
+    private FreeStyleBuild gatekeeperingAndUpmergingMercurial(ParameterValue... extraParameters) throws Exception {
+        return gatekeeperingAndUpmergingMercurial(Arrays.<Builder>asList(
+                new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null),
+                new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"),
+                new UpmergeBuilder("JenkinsTestRunner <test@runner.com>"),
+                new GatekeeperPush()), extraParameters);
+    }
+
+    private FreeStyleBuild gatekeeperingAndUpmergingMercurial(List<Builder> builders, ParameterValue... extraParameters)
+            throws Exception {
         /*
          * So:
          * set up a repo with 3 releases and 1 feature branch
@@ -71,20 +194,13 @@ public class CompleteProcessTest {
         m.hg(repo, "branch", "c3");
         m.touchAndCommit(repo, "c3");
 
-        GatekeeperMerge mergeBuilder = new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null);
-        GatekeeperCommit commitBuilder = new GatekeeperCommit("JenkinsTestRunner <test@runner.com>");
-        UpmergeBuilder upmergeBuilder = new UpmergeBuilder("JenkinsTestRunner <test@runner.com>");
-        GatekeeperPush pushBuilder = new GatekeeperPush();
-
         ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
         parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
         parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
         parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        parameters.addAll(Arrays.asList(extraParameters));
 
-        p.getBuildersList().add(mergeBuilder);
-        p.getBuildersList().add(commitBuilder);
-        p.getBuildersList().add(upmergeBuilder);
-        p.getBuildersList().add(pushBuilder);
+        p.getBuildersList().addAll(builders);
         m.buildAndCheck(p, "c3", new ParametersAction(parameters));
 
         // Check more files, we can do this on original repo, so we make sure that builder pushed changes.
@@ -115,10 +231,368 @@ public class CompleteProcessTest {
 
         //check that c3 feature branch is closed
         assertArrayEquals(new String[] {"default", "r1336", "r1338", "r1340"}, m.getBranches(repo));
+
+        // Stored report messages are the same as the ones in the log.
+        LogMessageSearcher searcher = new LogMessageSearcher(p.getLastBuild());
+        List<String> messages = searcher.searchForMessages();
+        assert messages.contains(LogMessageSearcher.getMessagePrefix() + "Gatekeeper push is done.");
+        assertEquals(searcher.searchForMessages(LogMessageSearcher.DEFAULT_MESSAGE_KEYWORD), messages);
+
+        // Builders, manager calls and hg commands are in the timeline, and the trace is archived.
+        BuildTimeline timeline = p.getLastBuild().getAction(BuildTimeline.class);
+        List<String> spanNames = new ArrayList<String>();
+        for (Span span: timeline.getSpans()) {
+            spanNames.add(span.getName());
+            assert span.getDuration() >= 0;
+        }
+        assert spanNames.contains("GatekeeperMerge");
+        assert spanNames.contains("stripLocal");
+        assert spanNames.contains("upmerge r1336 into r1338");
+        assert spanNames.contains("hg push");
+        assert new File(p.getLastBuild().getArtifactsDir(), BuildTimeline.TRACE_ARTIFACT).exists();
+        return p.getLastBuild();
+    }
+
+    @Test
+    public void testGatekeeperPushRetryMercurial() throws Exception {
+        pushRetryMercurial("r1336");
+    }
+
+    @Test
+    public void testGatekeeperPushRetryMercurialMirrorCache() throws Exception {
+        // The new remote commit is on an upmerged branch, which is not pulled with the target branch only.
+        pushRetryMercurial("r1338", new StringParameterValue("GATEKEEPER_MIRROR_CACHE", "true"));
+    }
+
+    private void pushRetryMercurial(String branch, ParameterValue... extraParameters) throws Exception {
+        FreeStyleBuild build = gatekeeperingAndUpmergingMercurial(
+                pushRetryBuilders(new RemoteCommit(true, branch, "concurrent")), extraParameters);
+
+        // The rejected push was retried with the new remote commit merged in.
+        j.assertLogContains("Push rejected, the remote got new commits.", build);
+        m.hg(repo, "update", branch);
+        assert new File(repo, "concurrent").exists();
+        assert new File(repo, "c3").exists();
+        assert !m.searchLog(repo, "[Jenkins Gatekeeping] Merged new remote commits of " + branch).isEmpty();
+    }
+
+    @Test
+    public void testGatekeeperPushRetryConflictMercurial() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new MercurialSCM(null, repo.getPath(), "tip", null, null, null, false));
+
+        // Init repo with a release and feature branch.
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "base");
+        m.hg(repo, "branch", "r1336");
+        m.touchAndCommit(repo, "r1336");
+        m.hg(repo, "branch", "c3");
+        m.touchAndCommit(repo, "c3");
+
+        // Meanwhile the release gets a commit of the same file.
+        p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        p.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
+        p.getBuildersList().add(new RemoteCommit(true, "r1336", "c3"));
+        p.getBuildersList().add(new GatekeeperPush("JenkinsTestRunner <test@runner.com>", 1));
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE,
+                p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)).get());
+
+        j.assertLogContains("change the same files as this request, it has to be built again.", build);
+        // Nothing was pushed, the release has one head with the concurrent commit.
+        assertEquals("", m.searchLog(repo, "[Jenkins Integration Merge] Merged c3 into r1336"));
+        assertArrayEquals(new String[] {"c3", "default", "r1336"}, m.getBranches(repo));
     }
 
     @Test
     public void testGatekeeperingAndUpmergingGit() throws Exception {
+        gatekeeperingAndUpmergingGit();
+    }
+
+    @Test
+    public void testGatekeeperingAndUpmergingJGit() throws Exception {
+        gatekeeperingAndUpmergingGit(new StringParameterValue("GATEKEEPER_GIT_IMPL", "jgit"));
+    }
+
+    @Test
+    public void testGatekeeperPipelineGit() throws Exception {
+        gatekeeperingAndUpmergingGit(Arrays.<Builder>asList(new GatekeeperPipeline(
+                "JenkinsTestRunner <test@runner.com>", null, null, "test -f c3", 0)));
+    }
+
+    @Test
+    public void testGatekeeperPipelineUpmergeConflictGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+        p.getBuildersList().add(new GatekeeperPipeline("JenkinsTestRunner <test@runner.com>", null, null, null, 0));
+
+        // Init repo with 2 releases which change release.txt differently, and a feature branch which does not.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "release.txt");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "r1338");
+        new FilePath(repo).child("release.txt").write("1338\n", "UTF-8");
+        g.touchAndCommit(repo, "release.txt");
+        client.checkout().ref("r1336").execute();
+        new FilePath(repo).child("release.txt").write("1336\n", "UTF-8");
+        g.touchAndCommit(repo, "release.txt");
+        client.checkout("HEAD", "c3");
+        g.touchAndCommit(repo, "c3");
+        client.checkout().ref("master").execute();
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        FreeStyleBuild build = p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)).get();
+        j.assertBuildStatus(Result.FAILURE, build);
+
+        // The feature branch merged fine, so the upmerge conflict is reported instead of a feature conflict.
+        @SuppressWarnings("deprecation")
+        String log = build.getLog();
+        assert log.contains("Upmerge pre-flight found conflicts merging r1336 into r1338");
+        assert !log.contains(GatekeeperMerge.MERGE_CONFLICT_MESSAGE);
+    }
+
+    @Test
+    public void testGatekeeperPipelineBatchGit() throws Exception {
+        FreeStyleProject p = createBatchProject(null, "c3", "c4");
+        List<QueueTaskFuture<FreeStyleBuild>> builds = scheduleBatch(p, Arrays.asList("c3", "c4"));
+        j.assertBuildStatusSuccess(builds.get(0));
+        j.waitUntilNoActivity();
+        assertEquals(1, p.getBuilds().size());
+
+        GitClient client = g.gitClient(repo);
+        client.checkout().ref("r1338").execute();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "c4").exists();
+        assert new File(repo, "r1338").exists();
+    }
+
+    @Test
+    public void testGatekeeperPipelineBatchBisectGit() throws Exception {
+        // The tests fail with c4, so the batch is bisected to push c3 and c5, and c4 is built on its own.
+        FreeStyleProject p = createBatchProject("test ! -f c4", "c3", "c4", "c5");
+        List<QueueTaskFuture<FreeStyleBuild>> builds = scheduleBatch(p, Arrays.asList("c3", "c4", "c5"));
+        FreeStyleBuild batch = j.assertBuildStatusSuccess(builds.get(0));
+        j.waitUntilNoActivity();
+        j.assertLogContains("Gatekeeper batch rejected c4.", batch);
+
+        assertEquals(2, p.getBuilds().size());
+        FreeStyleBuild single = p.getLastBuild();
+        j.assertBuildStatus(Result.FAILURE, single);
+        assertEquals("c4", getParameter(single, "FEATURE_BRANCH"));
+        assertEquals("false", getParameter(single, GatekeeperBatch.ENABLE_VARIABLE));
+
+        GitClient client = g.gitClient(repo);
+        client.checkout().ref("r1336").execute();
+        assert new File(repo, "c3").exists();
+        assert !new File(repo, "c4").exists();
+        assert new File(repo, "c5").exists();
+    }
+
+    @Test
+    public void testGatekeeperPipelineBatchFailureGit() throws Exception {
+        // Pulling c4 fails, which aborts the batch before any request is accepted or rejected.
+        FreeStyleProject p = createBatchProject(null, "c3", "c4");
+        List<QueueTaskFuture<FreeStyleBuild>> builds = scheduleBatch(p, Arrays.asList("c3", "c4"),
+                new StringParameterValue("REPO_URL", new File(repo2, "missing").getAbsolutePath()));
+        FreeStyleBuild batch = j.assertBuildStatus(Result.FAILURE, builds.get(0).get());
+        j.waitUntilNoActivity();
+        j.assertLogContains("Gatekeeper batch did not push c4, scheduling it again.", batch);
+
+        // The request taken from the queue is not lost, but built again on its own.
+        assertEquals(2, p.getBuilds().size());
+        FreeStyleBuild single = p.getLastBuild();
+        assertEquals("c4", getParameter(single, "FEATURE_BRANCH"));
+        assertEquals("false", getParameter(single, GatekeeperBatch.ENABLE_VARIABLE));
+    }
+
+    /**
+     * Create a project with a batching pipeline, on a repository with 2 releases and given feature branches
+     * of the first release.
+     */
+    private FreeStyleProject createBatchProject(String testCommand, String... features) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+        p.getBuildersList().add(
+                new GatekeeperPipeline("JenkinsTestRunner <test@runner.com>", null, null, testCommand, 5));
+
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "base");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "r1338");
+        g.touchAndCommit(repo, "r1338");
+        for (String feature: features) {
+            client.checkout().ref("r1336").execute();
+            client.checkout("HEAD", feature);
+            g.touchAndCommit(repo, feature);
+        }
+        client.checkout().ref("master").execute();
+        return p;
+    }
+
+    /**
+     * Queue requests for given feature branches before there is an executor, so the first build takes the others
+     * from the queue. The extra parameters are only given to the queued requests.
+     */
+    private List<QueueTaskFuture<FreeStyleBuild>> scheduleBatch(FreeStyleProject p, List<String> features,
+                                                                 ParameterValue... queuedParameters)
+            throws Exception {
+        j.jenkins.setNumExecutors(0);
+        List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        for (String feature: features) {
+            ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+            parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+            parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+            parameters.add(new StringParameterValue("FEATURE_BRANCH", feature));
+            if (!builds.isEmpty()) {
+                parameters.addAll(Arrays.asList(queuedParameters));
+            }
+            builds.add(p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)));
+        }
+        j.jenkins.setNumExecutors(1);
+        return builds;
+    }
+
+    private static String getParameter(FreeStyleBuild build, String name) {
+        ParameterValue parameter = build.getAction(ParametersAction.class).getParameter(name);
+        return parameter == null ? null : ((StringParameterValue) parameter).value;
+    }
+
+    @Test
+    public void testGatekeeperTrainGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+        p.setConcurrentBuild(true);
+        p.getBuildersList().add(new GatekeeperTrain("JenkinsTestRunner <test@runner.com>", null, null, null));
+
+        // Init repo with 2 releases and 2 feature branches.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "base");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "r1338");
+        g.touchAndCommit(repo, "r1338");
+        client.checkout().branch("r1336");
+        client.checkout("HEAD", "c3");
+        g.touchAndCommit(repo, "c3");
+        client.checkout().branch("r1336");
+        client.checkout("HEAD", "c4");
+        g.touchAndCommit(repo, "c4");
+        client.checkout().branch("master");
+
+        j.jenkins.setNumExecutors(2);
+        List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        for (String feature: new String[] {"c3", "c4"}) {
+            ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+            parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+            parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+            parameters.add(new StringParameterValue("FEATURE_BRANCH", feature));
+            builds.add(p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)));
+        }
+        for (QueueTaskFuture<FreeStyleBuild> build: builds) {
+            j.assertBuildStatusSuccess(build);
+        }
+        // Both cars left the train, so it is gone.
+        assert !MergeTrain.exists(p, "r1336");
+
+        client.checkout().ref("r1336").execute();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "c4").exists();
+        client.checkout().ref("r1338").execute();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "c4").exists();
+    }
+
+    @Test
+    public void testGatekeeperTrainRestartGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        // The first time the tests run, another commit lands on the target branch, without touching the work tree.
+        String external = "cd " + repo.getAbsolutePath() + "\n"
+                + "if [ ! -f .git/external-done ]; then\n"
+                + "  touch .git/external-done\n"
+                + "  export GIT_INDEX_FILE=.git/external-index\n"
+                + "  export GIT_AUTHOR_NAME=external GIT_AUTHOR_EMAIL=external@example.com\n"
+                + "  export GIT_COMMITTER_NAME=external GIT_COMMITTER_EMAIL=external@example.com\n"
+                + "  git read-tree r1336\n"
+                + "  git update-index --add --cacheinfo 100644,$(echo external | git hash-object -w --stdin),external\n"
+                + "  git update-ref refs/heads/r1336 $(git commit-tree $(git write-tree) -p r1336 -m external)\n"
+                + "fi\n";
+        p.getBuildersList().add(new GatekeeperTrain("JenkinsTestRunner <test@runner.com>", null, null, external));
+
+        // Init repo with 2 releases and a feature branch.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "base");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "r1338");
+        g.touchAndCommit(repo, "r1338");
+        client.checkout().ref("r1336").execute();
+        client.checkout("HEAD", "c3");
+        g.touchAndCommit(repo, "c3");
+        client.checkout().ref("master").execute();
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        FreeStyleBuild first = p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)).get();
+        j.waitUntilNoActivity();
+
+        // The content of the target branch changed after the speculative merge, so the request ran again.
+        assert first.getResult().isWorseThan(Result.SUCCESS);
+        j.assertLogContains("Target branch r1336 changed since the speculative merge", first);
+        assertEquals(2, p.getBuilds().size());
+        j.assertBuildStatusSuccess(p.getLastBuild());
+        assert !MergeTrain.exists(p, "r1336");
+
+        client.checkout().ref("r1336").execute();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "external").exists();
+        client.checkout().ref("r1338").execute();
+        assert new File(repo, "c3").exists();
+        assert new File(repo, "external").exists();
+    }
+
+    private void gatekeeperingAndUpmergingGit(ParameterValue... extraParameters) throws Exception {
+        gatekeeperingAndUpmergingGit(Arrays.<Builder>asList(
+                new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null),
+                new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"),
+                new UpmergeBuilder("JenkinsTestRunner <test@runner.com>"),
+                new GatekeeperPush()), extraParameters);
+    }
+
+    private FreeStyleBuild gatekeeperingAndUpmergingGit(List<Builder> builders, ParameterValue... extraParameters)
+            throws Exception {
         /*
          * So:
          * set up a repo with 3 releases and 1 feature branch
@@ -147,20 +621,13 @@ public class CompleteProcessTest {
         client.checkout("HEAD", "c3");
         g.touchAndCommit(repo, "c3");
 
-        GatekeeperMerge mergeBuilder = new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null);
-        GatekeeperCommit commitBuilder = new GatekeeperCommit("JenkinsTestRunner <test@runner.com>");
-        UpmergeBuilder upmergeBuilder = new UpmergeBuilder("JenkinsTestRunner <test@runner.com>");
-        GatekeeperPush pushBuilder = new GatekeeperPush();
-
         ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
         parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
         parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
         parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        parameters.addAll(Arrays.asList(extraParameters));
 
-        p.getBuildersList().add(mergeBuilder);
-        p.getBuildersList().add(commitBuilder);
-        p.getBuildersList().add(upmergeBuilder);
-        p.getBuildersList().add(pushBuilder);
+        p.getBuildersList().addAll(builders);
         g.buildAndCheck(p, "c3", new ParametersAction(parameters));
 
         // Check more files, we can do this on original repo, so we make sure that builder pushed changes.
@@ -187,6 +654,187 @@ public class CompleteProcessTest {
 
         //check that c3 feature branch is not removed
         assertArrayEquals(new String[]{"c3", "master", "r1336", "r1338", "r1340"}, g.getBranches(repo));
+        return p.getLastBuild();
+    }
+
+    /**
+     * Build step which commits to the target repository, like another gatekeeper build which pushed meanwhile.
+     */
+    private class RemoteCommit extends TestBuilder {
+        private final boolean mercurial;
+        private final String branch;
+        private final String name;
+
+        RemoteCommit(boolean mercurial, String branch, String name) {
+            this.mercurial = mercurial;
+            this.branch = branch;
+            this.name = name;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            try {
+                if (mercurial) {
+                    m.hg(repo, "update", branch);
+                    m.touchAndCommit(repo, name);
+                } else {
+                    // The feature branch stays checked out, so the release branches can be pushed.
+                    GitClient client = g.gitClient(repo);
+                    client.checkout().ref(branch).execute();
+                    g.touchAndCommit(repo, name);
+                    client.checkout().ref("c3").execute();
+                }
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace(listener.getLogger());
+                return false;
+            }
+        }
+    }
+
+    private static List<Builder> pushRetryBuilders(Builder remoteCommit) {
+        return Arrays.<Builder>asList(
+                new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null),
+                new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"),
+                new UpmergeBuilder("JenkinsTestRunner <test@runner.com>"),
+                remoteCommit,
+                new GatekeeperPush("JenkinsTestRunner <test@runner.com>", 1));
+    }
+
+    @Test
+    public void testGatekeeperPushRetryGit() throws Exception {
+        pushRetryGit();
+    }
+
+    @Test
+    public void testGatekeeperPushRetryJGit() throws Exception {
+        pushRetryGit(new StringParameterValue("GATEKEEPER_GIT_IMPL", "jgit"));
+    }
+
+    private void pushRetryGit(ParameterValue... extraParameters) throws Exception {
+        FreeStyleBuild build = gatekeeperingAndUpmergingGit(
+                pushRetryBuilders(new RemoteCommit(false, "r1336", "concurrent")), extraParameters);
+
+        // The rejected push was retried with the new remote commit merged in.
+        j.assertLogContains("Push rejected, the remote got new commits.", build);
+        GitClient client = g.gitClient(repo);
+        client.checkout().ref("r1336").execute();
+        assert new File(repo, "concurrent").exists();
+        assert new File(repo, "c3").exists();
+        assert !g.searchLog(repo, "[Jenkins Gatekeeping] Merged new remote commits of r1336").isEmpty();
+        client.checkout().ref("c3").execute();
+    }
+
+    @Test
+    public void testGatekeeperPushAtomicGit() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        // Init repo with 3 releases and feature branch.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "base");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "r1338");
+        g.touchAndCommit(repo, "r1338");
+        client.checkout("HEAD", "r1340");
+        g.touchAndCommit(repo, "r1340");
+        client.checkout().ref("r1336").execute();
+        client.checkout("HEAD", "c3");
+        g.touchAndCommit(repo, "c3");
+        String[] released = {"master", "r1336", "r1338", "r1340"};
+        List<String> before = new ArrayList<String>();
+        for (String branch: released) {
+            before.add(client.revParse(branch).name());
+        }
+
+        // Meanwhile r1338 gets a commit, so the push of the upmerged r1338 is rejected.
+        p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        p.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
+        p.getBuildersList().add(new UpmergeBuilder("JenkinsTestRunner <test@runner.com>"));
+        p.getBuildersList().add(new RemoteCommit(false, "r1338", "concurrent"));
+        p.getBuildersList().add(new GatekeeperPush());
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE,
+                p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)).get());
+
+        // All branches went out in one atomic push, so none of them was published.
+        List<String> pushes = new ArrayList<String>();
+        for (Span span: build.getAction(BuildTimeline.class).getSpans()) {
+            if (span.getName().equals("git push")) {
+                pushes.add(span.getDetail());
+            } else if (span.getName().equals("GatekeeperPush")) {
+                // The caught push failure is kept on the span of the build step.
+                assert span.getFailure() != null;
+            } else if (span.getName().equals("GatekeeperMerge")) {
+                assert span.getFailure() == null;
+            }
+        }
+        assertEquals(1, pushes.size());
+        assert pushes.get(0).startsWith("push --atomic origin ");
+        for (String branch: released) {
+            assert pushes.get(0).contains("refs/heads/" + branch + ":refs/heads/" + branch);
+        }
+        assertEquals(before.get(0), client.revParse("master").name());
+        assertEquals(before.get(1), client.revParse("r1336").name());
+        assertEquals(before.get(2), client.revParse("r1338^").name());
+        assertEquals(before.get(3), client.revParse("r1340").name());
+    }
+
+    @Test
+    public void testGatekeeperPushRetryConflictGit() throws Exception {
+        pushRetryConflictGit();
+    }
+
+    @Test
+    public void testGatekeeperPushRetryConflictJGit() throws Exception {
+        pushRetryConflictGit(new StringParameterValue("GATEKEEPER_GIT_IMPL", "jgit"));
+    }
+
+    private void pushRetryConflictGit(ParameterValue... extraParameters) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        List<UserRemoteConfig> remotes = new ArrayList<UserRemoteConfig>();
+        remotes.add(new UserRemoteConfig(repo.getPath(), "origin", "master", null));
+        List<BranchSpec> branches = new ArrayList<BranchSpec>();
+        branches.add(new BranchSpec("master"));
+        p.setScm(new GitSCM(remotes, branches, false, null, null, null, null));
+
+        // Init repo with a release and feature branch.
+        GitClient client = g.gitClient(repo);
+        client.init();
+        g.touchAndCommit(repo, "base");
+        client.checkout("HEAD", "r1336");
+        g.touchAndCommit(repo, "r1336");
+        client.checkout("HEAD", "c3");
+        g.touchAndCommit(repo, "c3");
+        String released = client.revParse("r1336").name();
+
+        // Meanwhile the release gets a commit of the same file.
+        p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
+        p.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
+        p.getBuildersList().add(new RemoteCommit(false, "r1336", "c3"));
+        p.getBuildersList().add(new GatekeeperPush("JenkinsTestRunner <test@runner.com>", 1));
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        parameters.addAll(Arrays.asList(extraParameters));
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE,
+                p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters)).get());
+
+        j.assertLogContains("change the same files as this request, it has to be built again.", build);
+        // Only the concurrent commit is on the release, nothing was pushed.
+        assertEquals(released, client.revParse("r1336^").name());
     }
 
     @Test
@@ -252,6 +900,15 @@ public class CompleteProcessTest {
 
     @Test
     public void testGatekeeperingNewReleaseBranchGit() throws Exception {
+        gatekeeperingNewReleaseBranchGit();
+    }
+
+    @Test
+    public void testGatekeeperingNewReleaseBranchJGit() throws Exception {
+        gatekeeperingNewReleaseBranchGit(new StringParameterValue("GATEKEEPER_GIT_IMPL", "jgit"));
+    }
+
+    private void gatekeeperingNewReleaseBranchGit(ParameterValue... extraParameters) throws Exception {
         /*
          * So:
          * set up a repo with 1 release and 1 feature branches
@@ -284,6 +941,7 @@ public class CompleteProcessTest {
         parameters.add(new StringParameterValue("TARGET_BRANCH", "r1338"));
         parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
         parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
+        parameters.addAll(Arrays.asList(extraParameters));
 
         p.getBuildersList().add(mergeBuilder);
         p.getBuildersList().add(commitBuilder);
@@ -317,6 +975,19 @@ public class CompleteProcessTest {
 
     @Test
     public void testGatekeeperingFromDifferentRepoAndUpmergingMercurial() throws Exception {
+        gatekeeperingFromDifferentRepoAndUpmergingMercurial();
+    }
+
+    @Test
+    public void testGatekeeperingFromDifferentRepoAndUpmergingMercurialMirrorCache() throws Exception {
+        gatekeeperingFromDifferentRepoAndUpmergingMercurial(new StringParameterValue("GATEKEEPER_MIRROR_CACHE", "true"));
+
+        FilePath mirror = getOnlyMirror();
+        assert mirror.child(".hg").child("store").isDirectory();
+    }
+
+    private FreeStyleProject gatekeeperingFromDifferentRepoAndUpmergingMercurial(ParameterValue... extraParameters)
+            throws Exception {
         /*
          * So:
          * set up a repo with 3 releases
@@ -353,6 +1024,7 @@ public class CompleteProcessTest {
         parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
         parameters.add(new StringParameterValue("APPROVED_REVISION", okRevision));
         parameters.add(new StringParameterValue("REPO_URL", repo2.getAbsolutePath()));
+        parameters.addAll(Arrays.asList(extraParameters));
 
         p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
         p.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
@@ -385,10 +1057,97 @@ public class CompleteProcessTest {
 
         assert !m.searchLog(repo, "[Jenkins Integration Merge] Merged c3 into r1336").isEmpty();
         assert !m.searchLog(repo, "[Jenkins Upmerging] Merged r1336 into r1338").isEmpty();
+        return p;
     }
 
     @Test
     public void testGatekeeperingFromDifferentRepoAndUpmergingGit() throws Exception {
+        gatekeeperingFromDifferentRepoAndUpmergingGit();
+    }
+
+    @Test
+    public void testGatekeeperingFromDifferentRepoAndUpmergingJGit() throws Exception {
+        gatekeeperingFromDifferentRepoAndUpmergingGit(new StringParameterValue("GATEKEEPER_GIT_IMPL", "jgit"));
+    }
+
+    @Test
+    public void testGatekeeperingFromDifferentRepoAndUpmergingGitMirrorCache() throws Exception {
+        StringParameterValue mirrorCache = new StringParameterValue("GATEKEEPER_MIRROR_CACHE", "true");
+        FreeStyleProject p = gatekeeperingFromDifferentRepoAndUpmergingGit(mirrorCache);
+
+        FilePath mirror = getOnlyMirror();
+        assert mirror.child("HEAD").exists();
+        mirror.child("reused").touch(0);
+
+        // A second feature branch from the same repository is fetched through the same mirror.
+        GitClient client2 = g.gitClient(repo2);
+        client2.checkout().ref("r1336").execute();
+        client2.checkout().branch("c4").execute();
+        g.touchAndCommit(repo2, "c4");
+
+        ArrayList<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("ORIGINAL_BRANCH", "r1336"));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", "c4"));
+        parameters.add(new StringParameterValue("APPROVED_REVISION", g.getLastChangesetId(repo2)));
+        parameters.add(new StringParameterValue("REPO_URL", repo2.getAbsolutePath()));
+        parameters.add(mirrorCache);
+        String log = g.buildAndCheck(p, "c4", new ParametersAction(parameters));
+
+        assert log.contains("Updated mirror of " + repo2.getAbsolutePath());
+        assertEquals(mirror, getOnlyMirror());
+        assert mirror.child("reused").exists();
+        assert !g.searchLog(repo, "[Jenkins Integration Merge] Merged c4 into r1336").isEmpty();
+    }
+
+    /**
+     * @return FilePath of the only mirror in the cache of the master, with its bookkeeping written.
+     */
+    private FilePath getOnlyMirror() throws Exception {
+        List<FilePath> mirrors = j.jenkins.getRootPath().child("gatekeeper-mirrors").listDirectories();
+        assertEquals(1, mirrors.size());
+        FilePath mirror = mirrors.get(0);
+        assert mirror.child(MirrorCache.INFO_FILE).exists();
+        return mirror;
+    }
+
+    @Test
+    public void testGatekeeperingFromDifferentRepoAndUpmergingGitSharedObjects() throws Exception {
+        FreeStyleProject p = gatekeeperingFromDifferentRepoAndUpmergingGit(
+                new StringParameterValue("GATEKEEPER_GIT_SHARED", "true"));
+
+        // The workspace borrows the objects of the shared store of its remote.
+        FilePath alternates = p.getLastBuild().getWorkspace().child(".git/objects/info/alternates");
+        assert alternates.exists();
+        File objects = new File(alternates.readToString().trim());
+        assert objects.isDirectory();
+        assertEquals("objects", objects.getName());
+        assertEquals(new File(j.jenkins.getRootDir(), "gatekeeper-shared-objects").getCanonicalFile(),
+                objects.getParentFile().getParentFile().getCanonicalFile());
+    }
+
+    @Test
+    public void testGatekeeperingFromDifferentRepoAndUpmergingGitCatFile() throws Exception {
+        FreeStyleProject p = gatekeeperingFromDifferentRepoAndUpmergingGit(
+                new StringParameterValue("GATEKEEPER_GIT_CATFILE", "true"));
+
+        // The backends fall back to git processes silently, so check one session answered the queries.
+        FreeStyleBuild build = p.getLastBuild();
+        @SuppressWarnings("deprecation")
+        String log = build.getLog();
+        assertEquals(1, log.split("cat-file --batch-check", -1).length - 1);
+        assert !log.contains("git cat-file session is not available");
+        int lookups = 0;
+        for (Span span: build.getAction(BuildTimeline.class).getSpans()) {
+            if (span.getName().equals("git cat-file")) {
+                lookups++;
+            }
+        }
+        assert lookups > 1;
+    }
+
+    private FreeStyleProject gatekeeperingFromDifferentRepoAndUpmergingGit(ParameterValue... extraParameters)
+            throws Exception {
         /*
          * So:
          * set up a repo with 3 releases
@@ -431,6 +1190,7 @@ public class CompleteProcessTest {
         parameters.add(new StringParameterValue("FEATURE_BRANCH", "c3"));
         parameters.add(new StringParameterValue("APPROVED_REVISION", okRevision));
         parameters.add(new StringParameterValue("REPO_URL", repo2.getAbsolutePath()));
+        parameters.addAll(Arrays.asList(extraParameters));
 
         p.getBuildersList().add(new GatekeeperMerge("JenkinsTestRunner <test@runner.com>", null, null));
         p.getBuildersList().add(new GatekeeperCommit("JenkinsTestRunner <test@runner.com>"));
@@ -463,6 +1223,7 @@ public class CompleteProcessTest {
         assert new File(repo, "r1340").exists();
         assert !g.searchLog(repo, "[Jenkins Integration Merge] Merged c3 into r1336").isEmpty();
         assert !g.searchLog(repo, "[Jenkins Upmerging] Merged r1336 into r1338").isEmpty();
+        return p;
     }
 
 }
@@ -0,0 +1,110 @@
+package org.paylogic.jenkins.gatekeeper;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.util.OneShotEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class TargetBranchDispatcherTest {
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    /**
+     * Events of the builds by feature branch: started when the build runs, released to let it finish.
+     */
+    private static final Map<String, OneShotEvent> STARTED = new ConcurrentHashMap<String, OneShotEvent>();
+    private static final Map<String, OneShotEvent> RELEASED = new ConcurrentHashMap<String, OneShotEvent>();
+
+    /**
+     * Build step which runs until the test releases it, then fails the build so the push after it is not run.
+     */
+    public static class WaitingBuilder extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            String feature = build.getEnvironment(listener).get("FEATURE_BRANCH");
+            STARTED.get(feature).signal();
+            RELEASED.get(feature).block();
+            return false;
+        }
+    }
+
+    private FreeStyleProject createProject() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setConcurrentBuild(true);
+        p.getBuildersList().add(new WaitingBuilder());
+        p.getBuildersList().add(new GatekeeperPush());
+        j.jenkins.setNumExecutors(2);
+        return p;
+    }
+
+    private QueueTaskFuture<FreeStyleBuild> schedule(FreeStyleProject p, String target, String feature) {
+        STARTED.put(feature, new OneShotEvent());
+        RELEASED.put(feature, new OneShotEvent());
+        List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+        parameters.add(new StringParameterValue("TARGET_BRANCH", target));
+        parameters.add(new StringParameterValue("FEATURE_BRANCH", feature));
+        return p.scheduleBuild2(0, new Cause.UserIdCause(), new ParametersAction(parameters));
+    }
+
+    @Test
+    public void testSameTargetBranchIsBlocked() throws Exception {
+        FreeStyleProject p = createProject();
+        QueueTaskFuture<FreeStyleBuild> first = schedule(p, "r1336", "c3");
+        STARTED.get("c3").block(10000);
+        assert STARTED.get("c3").isSignaled();
+
+        QueueTaskFuture<FreeStyleBuild> second = schedule(p, "r1336", "c4");
+        j.jenkins.getQueue().maintain();
+        Queue.Item item = j.jenkins.getQueue().getItem(p);
+        assert item != null;
+        assert item.getCauseOfBlockage() instanceof TargetBranchDispatcher.TargetBranchBusy;
+        assert !STARTED.get("c4").isSignaled();
+
+        // Once the first build is done, the second one runs.
+        RELEASED.get("c3").signal();
+        first.get();
+        STARTED.get("c4").block(10000);
+        assert STARTED.get("c4").isSignaled();
+        RELEASED.get("c4").signal();
+        second.get();
+        assertEquals(2, p.getBuilds().size());
+    }
+
+    @Test
+    public void testOtherTargetBranchesRunInParallel() throws Exception {
+        FreeStyleProject p = createProject();
+        QueueTaskFuture<FreeStyleBuild> first = schedule(p, "r1336", "c3");
+        QueueTaskFuture<FreeStyleBuild> second = schedule(p, "r1338", "c4");
+
+        // Both builds run while neither is released.
+        STARTED.get("c3").block(10000);
+        STARTED.get("c4").block(10000);
+        assert STARTED.get("c3").isSignaled();
+        assert STARTED.get("c4").isSignaled();
+
+        RELEASED.get("c3").signal();
+        RELEASED.get("c4").signal();
+        first.get();
+        second.get();
+        assertEquals(2, p.getBuilds().size());
+    }
+}
@@ -0,0 +1,42 @@
+package org.paylogic.jenkins.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+    @Test
+    public void testCumulativeBuckets() throws Exception {
+        Histogram histogram = new Histogram(new double[] {1, 2, 5});
+        histogram.record(0.5);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(8);
+        assertArrayEquals(new long[] {2, 2, 3, 4}, histogram.getCumulativeCounts());
+        assertEquals(4, histogram.getCount());
+        assertEquals(12.5, histogram.getSum(), 1e-9);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final Histogram histogram = new Histogram(Histogram.LATENCY_BOUNDS);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(0.25);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(10000, histogram.getSum(), 1e-6);
+    }
+}
@@ -0,0 +1,43 @@
+package org.paylogic.jenkins.upmerge.releasebranch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReleaseBranchImplTest {
+
+    private List<String> chain(String start, List<String> branches) throws Exception {
+        ReleaseBranch releaseBranch = new ReleaseBranchImpl(start, "default");
+        ReleaseBranchIndex index = releaseBranch.index(branches);
+        List<String> result = new ArrayList<String>();
+        while (!releaseBranch.getName().equals("default")) {
+            releaseBranch.next(index);
+            result.add(releaseBranch.getName());
+        }
+        return result;
+    }
+
+    @Test
+    public void testNextSkipsMissingReleases() throws Exception {
+        List<String> branches = Arrays.asList("default", "c3", "r1336", "r1338", "r1352", "r1353", "r1401", "feature");
+        assertEquals(Arrays.asList("r1338", "r1352", "r1401", "default"), chain("r1336", branches));
+    }
+
+    @Test
+    public void testNextWithoutLaterReleases() throws Exception {
+        assertEquals(Arrays.asList("default"), chain("r1336", Arrays.asList("default", "r1336")));
+        assertEquals(Arrays.asList("default"), chain("r1336", Arrays.asList("default")));
+    }
+
+    @Test
+    public void testNextWithBranchList() throws Exception {
+        ReleaseBranch releaseBranch = new ReleaseBranchImpl("r1336", "default");
+        releaseBranch.next(Arrays.asList("r1336", "r1340", "r1338"));
+        assertEquals("r1338", releaseBranch.getName());
+        assertEquals("1338", releaseBranch.getReleaseName());
+    }
+}